@@ -0,0 +1,179 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented stress test showing that readers of the database keep a steady latency while
+ * a large import is being written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemDbHelperConcurrencyTest {
+
+    private static final String DATABASE_NAME = "warehouse-concurrency-test.db";
+
+    /** Rows in the catalog before the test starts */
+    private static final int INITIAL_ROWS = 10000;
+
+    /** Rows written per import transaction */
+    private static final int IMPORT_CHUNK = 2000;
+
+    /** Number of threads reading while the import runs */
+    private static final int READERS = 3;
+
+    /** Lookups per reader thread */
+    private static final int READS = 500;
+
+    private Context mContext;
+    private ItemDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new ItemDbHelper(mContext, DATABASE_NAME);
+        insertRows(mDbHelper.getWritableDatabase(), 0, INITIAL_ROWS);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void database_usesWriteAheadLog() {
+        String mode = DatabaseUtils.stringForQuery(mDbHelper.getReadableDatabase(),
+                "PRAGMA journal_mode", null);
+        assertEquals("wal", mode.toLowerCase());
+    }
+
+    @Test
+    public void readLatency_holdsSteadyDuringImport() throws Exception {
+        long idleP99 = p99(readConcurrently(null));
+
+        // Keep importing in large transactions for as long as the readers run
+        final AtomicBoolean importing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> importError = new AtomicReference<>();
+        Thread importer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int next = INITIAL_ROWS;
+                    while (importing.get()) {
+                        insertRows(mDbHelper.getWritableDatabase(), next, IMPORT_CHUNK);
+                        next += IMPORT_CHUNK;
+                    }
+                } catch (Throwable t) {
+                    importError.set(t);
+                }
+            }
+        });
+        importer.start();
+
+        long importP99;
+        try {
+            importP99 = p99(readConcurrently(importer));
+        } finally {
+            importing.set(false);
+            importer.join();
+        }
+
+        assertNull(importError.get());
+        // Without WAL every read waits for the running import transaction to commit, which
+        // takes far longer than any of these bounds.
+        assertTrue("p99 read latency went from " + idleP99 / 1000 + " us to "
+                        + importP99 / 1000 + " us during the import",
+                importP99 <= Math.max(idleP99 * 5, 20000000L));
+    }
+
+    /**
+     * Run {@link #READERS} threads that each look up {@link #READS} random items, and return
+     * the latency of every lookup in nanoseconds.
+     */
+    private List<Long> readConcurrently(final Thread importer) throws Exception {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(READERS);
+
+        for (int r = 0; r < READERS; r++) {
+            final Random random = new Random(r);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+                        for (int i = 0; i < READS; i++) {
+                            String id = String.valueOf(1 + random.nextInt(INITIAL_ROWS));
+                            long start = System.nanoTime();
+                            Cursor cursor = database.query(ItemEntry.TABLE_NAME, null,
+                                    ItemEntry._ID + "=?", new String[] { id }, null, null, null);
+                            try {
+                                assertTrue(cursor.moveToFirst());
+                            } finally {
+                                cursor.close();
+                            }
+                            latencies.add(System.nanoTime() - start);
+                        }
+                    } catch (Throwable t) {
+                        error.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        done.await();
+        assertNull(error.get());
+        if (importer != null) {
+            assertTrue("The import stopped before the readers finished", importer.isAlive());
+        }
+        return latencies;
+    }
+
+    private static long p99(List<Long> latencies) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        return sorted.get((int) (sorted.size() * 0.99));
+    }
+
+    private static void insertRows(SQLiteDatabase database, int first, int count) {
+        database.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = first; i < first + count; i++) {
+                values.put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+                values.put(ItemEntry.COLUMN_ITEM_BRAND, "Brand " + (i % 50));
+                values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+                values.put(ItemEntry.COLUMN_ITEM_AMOUNT, i % 100);
+                database.insert(ItemEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented tests for the schema created and migrated by {@link ItemDbHelper}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemDbHelperTest {
+
+    /** Projection of the catalog list */
+    private static final String[] LIST_PROJECTION = {
+            ItemEntry._ID, ItemEntry.COLUMN_ITEM_NAME, ItemEntry.COLUMN_ITEM_BRAND };
+
+    private ItemDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        // Use an in-memory database so the app's real data is never touched
+        mDbHelper = new ItemDbHelper(InstrumentationRegistry.getTargetContext(), null);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    /** Live filter the provider adds to every catalog query */
+    private static final String LIVE = "(" + ItemEntry.COLUMN_ITEM_DELETED_AT + " IS NULL)";
+
+    @Test
+    public void lookupByName_usesIndex() {
+        String plan = queryPlan("SELECT * FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + LIVE + " AND " + ItemEntry.COLUMN_ITEM_NAME + "=?", "Handset");
+        assertUsesIndex(plan);
+    }
+
+    @Test
+    public void lookupByBrand_usesIndex() {
+        String plan = queryPlan("SELECT * FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry.COLUMN_ITEM_BRAND + "=?", "Samsung");
+        assertUsesIndex(plan);
+    }
+
+    @Test
+    public void listPageByName_isCoveredByIndex() {
+        // The SQL the provider runs for a page of the list by name
+        String plan = queryPlan(SQLiteQueryBuilder.buildQueryString(false, ItemEntry.TABLE_NAME,
+                LIST_PROJECTION, LIVE + " AND (" + ItemEntry.COLUMN_ITEM_NAME + " >= ? AND ("
+                        + ItemEntry.COLUMN_ITEM_NAME + " > ? OR " + ItemEntry._ID + " > ?))",
+                null, null, ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry._ID, "100"),
+                "Handset", "Handset", "7");
+        assertTrue(plan, plan.contains("COVERING INDEX catalog_list_idx"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void listPageById_isReadInOrder() {
+        // The SQL the provider runs for a page of the list by _id, as the catalog screen reads it
+        String plan = queryPlan(SQLiteQueryBuilder.buildQueryString(false, ItemEntry.TABLE_NAME,
+                LIST_PROJECTION, LIVE + " AND (" + ItemEntry._ID + " > ?)",
+                null, null, ItemEntry._ID, "100"), "7");
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void upgradeFromVersion1_createsIndexes() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE " + ItemEntry.TABLE_NAME + " ("
+                    + ItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + ItemEntry.COLUMN_ITEM_NAME + " TEXT NOT NULL, "
+                    + ItemEntry.COLUMN_ITEM_BRAND + " TEXT, "
+                    + ItemEntry.COLUMN_ITEM_PRICE + " INTEGER NOT NULL, "
+                    + ItemEntry.COLUMN_ITEM_AMOUNT + " INTEGER NOT NULL DEFAULT 0);");
+
+            mDbHelper.onUpgrade(db, 1, 2);
+
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master"
+                    + " WHERE type='index' AND tbl_name=? AND name IN (?, ?)",
+                    new String[] { ItemEntry.TABLE_NAME, "catalog_brand_idx", "catalog_list_idx" });
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(2, cursor.getInt(0));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void purgingNewestTombstone_doesNotReuseVersions() {
+        long first = insertItem("Handset");
+        long second = insertItem("Charger");
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(ItemEntry.COLUMN_ITEM_DELETED_AT, System.currentTimeMillis());
+        mDatabase.update(ItemEntry.TABLE_NAME, tombstone, ItemEntry._ID + "=" + second, null);
+        long deletedVersion = version(second);
+        mDatabase.delete(ItemEntry.TABLE_NAME, ItemEntry._ID + "=" + second, null);
+
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 5);
+        mDatabase.update(ItemEntry.TABLE_NAME, values, ItemEntry._ID + "=" + first, null);
+
+        assertTrue(version(first) > deletedVersion);
+    }
+
+    private long insertItem(String name) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        return mDatabase.insert(ItemEntry.TABLE_NAME, null, values);
+    }
+
+    private long version(long id) {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + "=" + id, null);
+    }
+
+    /**
+     * Return the EXPLAIN QUERY PLAN output for the given statement, one step per line.
+     */
+    private String queryPlan(String sql, String... args) {
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumnIndex)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertUsesIndex(String plan) {
+        assertTrue(plan, plan.contains("USING INDEX") || plan.contains("USING COVERING INDEX"));
+        assertFalse(plan, plan.matches("(?s).*SCAN (TABLE )?" + ItemEntry.TABLE_NAME + "\\s*\n.*"));
+    }
+}
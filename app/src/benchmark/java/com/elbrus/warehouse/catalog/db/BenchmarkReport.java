@@ -0,0 +1,235 @@
+package com.elbrus.warehouse.catalog.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Times benchmark operations and compares the results with the committed baseline.
+ *
+ * The baseline file, results file, threshold and recording mode are passed in as system
+ * properties by the Gradle build, see the testOptions block of app/build.gradle.
+ */
+class BenchmarkReport {
+
+    /** Start of the comment line describing the machine a baseline was recorded on */
+    private static final String RECORDED_ON = "# Recorded on: ";
+
+    /**
+     * A single timed operation.
+     */
+    interface Operation {
+        void run(int iteration);
+    }
+
+    /** Operations per second of every benchmark run so far, by name */
+    private final Map<String, Double> mResults = new LinkedHashMap<>();
+
+    /**
+     * Run the given operation {@code warmup} times untimed, then {@code iterations} times timed,
+     * and record its throughput under the given name.
+     *
+     * @param unitsPerOp how many operations one call stands for, e.g. the rows of a bulk insert
+     */
+    void measure(String name, int warmup, int iterations, int unitsPerOp, Operation operation) {
+        measure(name, warmup, iterations, unitsPerOp, null, operation);
+    }
+
+    /**
+     * Same as {@link #measure(String, int, int, int, Operation)}, running the untimed
+     * {@code setup} operation, if any, before every call of the timed one.
+     */
+    void measure(String name, int warmup, int iterations, int unitsPerOp, Operation setup,
+                 Operation operation) {
+        for (int i = 0; i < warmup; i++) {
+            if (setup != null) {
+                setup.run(i);
+            }
+            operation.run(i);
+        }
+
+        long[] nanos = new long[iterations];
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            if (setup != null) {
+                setup.run(warmup + i);
+            }
+            long start = System.nanoTime();
+            operation.run(warmup + i);
+            nanos[i] = System.nanoTime() - start;
+            total += nanos[i];
+        }
+
+        double opsPerSec = (double) iterations * unitsPerOp / (total / 1e9);
+        record(name, opsPerSec, nanos, iterations + " x " + unitsPerOp);
+    }
+
+    /**
+     * Record the throughput of operations timed elsewhere, such as by several threads at once.
+     *
+     * @param nanos       latency of every operation, in any order
+     * @param description what was run, printed after the results
+     */
+    void record(String name, double opsPerSec, long[] nanos, String description) {
+        mResults.put(name, opsPerSec);
+        if (nanos.length == 0) {
+            System.out.println(String.format(Locale.US, "%-28s %12.1f ops/s   (%s)",
+                    name, opsPerSec, description));
+            return;
+        }
+
+        Arrays.sort(nanos);
+        long p50 = nanos[nanos.length / 2];
+        long p99 = nanos[Math.min(nanos.length - 1, (int) (nanos.length * 0.99))];
+        System.out.println(String.format(Locale.US,
+                "%-28s %12.1f ops/s   p50 %10.3f ms   p99 %10.3f ms   (%s)",
+                name, opsPerSec, p50 / 1e6, p99 / 1e6, description));
+    }
+
+    /**
+     * Write the results, record them as the new baseline if asked to, and otherwise return a
+     * description of every benchmark that regressed beyond the threshold (empty if none did).
+     */
+    List<String> finish() throws IOException {
+        String resultsPath = System.getProperty("benchmark.results");
+        if (resultsPath != null) {
+            write(new File(resultsPath), mResults, "ItemProvider benchmark results, ops/s");
+        }
+
+        List<String> regressions = new ArrayList<>();
+        String baselinePath = System.getProperty("benchmark.baseline");
+        if (baselinePath == null) {
+            return regressions;
+        }
+        File baselineFile = new File(baselinePath);
+
+        if (Boolean.getBoolean("benchmark.record")) {
+            write(baselineFile, mResults, null);
+            System.out.println("Recorded new baseline in " + baselineFile + " on " + machine());
+            return regressions;
+        }
+
+        Properties baseline = new Properties();
+        if (baselineFile.exists()) {
+            InputStream in = new FileInputStream(baselineFile);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        // Without a recorded baseline there is nothing to compare with, so the run can't pass
+        if (baseline.isEmpty()) {
+            regressions.add("no baseline recorded in " + baselineFile
+                    + ", record one on the reference machine with -Pbenchmark.record");
+            return regressions;
+        }
+        String recordedOn = recordedOn(baselineFile);
+        if (!machine().equals(recordedOn)) {
+            System.out.println("Warning: baseline recorded on " + recordedOn
+                    + ", this run is on " + machine() + ", results aren't comparable");
+        }
+
+        double threshold = Double.parseDouble(System.getProperty("benchmark.threshold", "0.2"));
+        for (Map.Entry<String, Double> result : mResults.entrySet()) {
+            String expected = baseline.getProperty(result.getKey());
+            if (expected == null) {
+                System.out.println(result.getKey() + ": no baseline");
+                continue;
+            }
+            double floor = Double.parseDouble(expected) * (1 - threshold);
+            if (result.getValue() < floor) {
+                regressions.add(String.format(Locale.US, "%s: %.1f ops/s, baseline %s ops/s",
+                        result.getKey(), result.getValue(), expected));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Describe the machine running the benchmarks, as written in a recorded baseline.
+     */
+    private static String machine() {
+        return String.format(Locale.US, "%s %s, %s, %d processors, Java %s (%s)",
+                System.getProperty("os.name"), System.getProperty("os.version"),
+                System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.version"), System.getProperty("java.vm.name"));
+    }
+
+    /**
+     * Read the description of the machine the given baseline was recorded on, null if it has
+     * none.
+     */
+    private static String recordedOn(File file) throws IOException {
+        for (String line : readLines(file)) {
+            if (line.startsWith(RECORDED_ON)) {
+                return line.substring(RECORDED_ON.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the given results as a properties file. When no comment is given, the leading
+     * comment block of an existing file is kept, so recording a baseline keeps its instructions,
+     * and the machine running the benchmarks replaces the one it was recorded on before.
+     */
+    private static void write(File file, Map<String, Double> results, String comment)
+            throws IOException {
+        StringBuilder header = new StringBuilder();
+        if (comment != null) {
+            header.append("# ").append(comment).append('\n');
+        } else if (file.exists()) {
+            for (String line : readLines(file)) {
+                if (!line.startsWith("#")) {
+                    break;
+                }
+                if (!line.startsWith(RECORDED_ON)) {
+                    header.append(line).append('\n');
+                }
+            }
+        }
+        if (comment == null) {
+            header.append(RECORDED_ON).append(machine()).append('\n');
+        }
+
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(header.toString());
+            for (Map.Entry<String, Double> result : new TreeMap<>(results).entrySet()) {
+                writer.write(String.format(Locale.US, "%s=%.1f%n", result.getKey(), result.getValue()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,195 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput and latency benchmarks for {@link ItemProvider} and {@link ItemDbHelper}, run on
+ * the JVM under Robolectric. Only runs with {@code ./gradlew :app:testDebugUnitTest -Pbenchmark},
+ * and fails when a result regresses beyond the threshold against benchmark-baseline.properties.
+ * Items come from a seeded {@link CatalogGenerator}, so every run works on the same catalog.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderBenchmark {
+
+    /** Rows per bulk insert call, both for the benchmark and to fill the catalog */
+    private static final int BATCH_SIZE = 1000;
+
+    /** Projection used by the catalog list */
+    private static final String[] LIST_PROJECTION = {
+            ItemEntry._ID, ItemEntry.COLUMN_ITEM_NAME, ItemEntry.COLUMN_ITEM_BRAND };
+
+    /** Mix of the mixed workload unless -Pbenchmark.mix gives another one */
+    private static final String DEFAULT_MIX = "lookup=60,list=10,adjust=25,insert=5";
+
+    private ContentResolver mResolver;
+    private final BenchmarkReport mReport = new BenchmarkReport();
+    private final Random mRandom = new Random(42);
+    private final CatalogGenerator mGenerator = new CatalogGenerator(42);
+
+    /** Number of rows currently in the catalog */
+    private int mRows;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        benchmarkInserts();
+        benchmarkDeleteAll();
+
+        for (String size : System.getProperty("benchmark.sizes", "1000").split(",")) {
+            int rows = Integer.parseInt(size.trim());
+            fillTo(rows);
+            benchmarkQueries(rows);
+        }
+
+        // Replay the mixed workload from several threads on the largest catalog
+        WorkloadRunner workload = new WorkloadRunner(mResolver,
+                WorkloadRunner.parseMix(System.getProperty("benchmark.mix", DEFAULT_MIX)),
+                Integer.parseInt(System.getProperty("benchmark.threads", "4")), 42);
+        workload.run("workload_" + mRows, 2000, mReport);
+
+        List<String> regressions = mReport.finish();
+        assertTrue("Benchmarks regressed beyond the baseline:\n" + regressions,
+                regressions.isEmpty());
+    }
+
+    private void benchmarkInserts() {
+        mReport.measure("insert_single", 200, 2000, 1, new BenchmarkReport.Operation() {
+            @Override
+            public void run(int iteration) {
+                mResolver.insert(ItemEntry.CONTENT_URI, mGenerator.next());
+                mRows++;
+            }
+        });
+
+        mReport.measure("insert_bulk", 2, 20, BATCH_SIZE, new BenchmarkReport.Operation() {
+            @Override
+            public void run(int iteration) {
+                mRows += mResolver.bulkInsert(ItemEntry.CONTENT_URI, newItems());
+            }
+        });
+    }
+
+    private void benchmarkDeleteAll() {
+        final int rows = 10 * BATCH_SIZE;
+        mReport.measure("delete_all_" + rows, 1, 5, rows,
+                new BenchmarkReport.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        fillTo(rows);
+                    }
+                },
+                new BenchmarkReport.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        mResolver.delete(ItemEntry.CONTENT_URI, null, null);
+                        mRows = 0;
+                    }
+                });
+    }
+
+    private void benchmarkQueries(final int rows) {
+        final long maxId = maxId();
+
+        mReport.measure("list_query_" + rows, 1, rows >= 1000000 ? 3 : 10, rows,
+                new BenchmarkReport.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readAll(mResolver.query(ItemEntry.CONTENT_URI, LIST_PROJECTION,
+                                null, null, null));
+                    }
+                });
+
+        mReport.measure("list_page_" + rows, 20, 200, 1, new BenchmarkReport.Operation() {
+            @Override
+            public void run(int iteration) {
+                // Random pages, so the query cache doesn't answer them
+                Uri page = ItemEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(ItemEntry.QUERY_PARAMETER_AFTER_ID,
+                                String.valueOf(randomId(maxId)))
+                        .appendQueryParameter(ItemEntry.QUERY_PARAMETER_LIMIT, "100")
+                        .build();
+                readAll(mResolver.query(page, LIST_PROJECTION, null, null, null));
+            }
+        });
+
+        mReport.measure("id_lookup_" + rows, 200, 2000, 1, new BenchmarkReport.Operation() {
+            @Override
+            public void run(int iteration) {
+                readAll(mResolver.query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI,
+                        randomId(maxId)), null, null, null, null));
+            }
+        });
+
+        mReport.measure("update_" + rows, 200, 2000, 1, new BenchmarkReport.Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues values = new ContentValues();
+                values.put(ItemEntry.COLUMN_ITEM_AMOUNT, iteration);
+                mResolver.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI,
+                        randomId(maxId)), values, null, null);
+            }
+        });
+    }
+
+    /**
+     * Bulk insert items until the catalog holds at least the given number of rows.
+     */
+    private void fillTo(int rows) {
+        while (mRows < rows) {
+            mRows += mResolver.bulkInsert(ItemEntry.CONTENT_URI, newItems());
+        }
+    }
+
+    private long maxId() {
+        Cursor cursor = mResolver.query(ItemEntry.CONTENT_URI, new String[] { "MAX(_id)" },
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long randomId(long maxId) {
+        return 1 + (long) (mRandom.nextDouble() * maxId);
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues[] newItems() {
+        return mGenerator.next(BATCH_SIZE);
+    }
+}
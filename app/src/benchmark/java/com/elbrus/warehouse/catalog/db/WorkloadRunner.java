@@ -0,0 +1,220 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays a mix of catalog operations against {@link ItemProvider} from several threads at once
+ * and reports the throughput and latency of each kind of operation.
+ *
+ * Every thread draws its operations from its own seeded generator, so a run with the same mix,
+ * seed and catalog does the same work on every build.
+ */
+class WorkloadRunner {
+
+    /**
+     * Kinds of operation in a workload.
+     */
+    enum Op {
+        /** Read a single random item */
+        LOOKUP,
+        /** Read a page of 100 items from a random position */
+        LIST,
+        /** Add to or take from the amount of a random item */
+        ADJUST,
+        /** Insert a new item */
+        INSERT
+    }
+
+    private final ContentResolver mResolver;
+    private final Map<Op, Integer> mMix;
+    private final int mThreads;
+    private final long mSeed;
+
+    /**
+     * Constructs a new {@link WorkloadRunner}.
+     *
+     * @param mix     relative weight of each kind of operation
+     * @param threads number of threads replaying operations at once
+     * @param seed    seed of the workload, the same seed replays the same operations
+     */
+    WorkloadRunner(ContentResolver resolver, Map<Op, Integer> mix, int threads, long seed) {
+        mResolver = resolver;
+        mMix = mix;
+        mThreads = threads;
+        mSeed = seed;
+    }
+
+    /**
+     * Parse a mix such as "lookup=60,list=10,adjust=25,insert=5" into the weight of each kind of
+     * operation. Kinds that aren't named are left out of the workload.
+     */
+    static Map<Op, Integer> parseMix(String mix) {
+        Map<Op, Integer> weights = new EnumMap<>(Op.class);
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Bad workload mix " + mix);
+            }
+            weights.put(Op.valueOf(pair[0].trim().toUpperCase(Locale.US)),
+                    Integer.parseInt(pair[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Run the given number of operations on every thread and record the results in the report,
+     * one entry per kind of operation plus one for the whole workload, named after the prefix.
+     */
+    void run(String prefix, final int operationsPerThread, BenchmarkReport report)
+            throws Exception {
+        final long maxId = maxId();
+        final Map<Op, List<Long>> latencies = new EnumMap<>(Op.class);
+        for (Op op : mMix.keySet()) {
+            latencies.put(op, new ArrayList<Long>());
+        }
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(mThreads);
+        for (int t = 0; t < mThreads; t++) {
+            final long seed = mSeed + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Map<Op, List<Long>> own = replay(seed, maxId, operationsPerThread);
+                        synchronized (latencies) {
+                            for (Map.Entry<Op, List<Long>> entry : own.entrySet()) {
+                                latencies.get(entry.getKey()).addAll(entry.getValue());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "workload-" + t).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        if (error.get() != null) {
+            throw new AssertionError("Workload failed", error.get());
+        }
+
+        String description = mThreads + " threads x " + operationsPerThread;
+        long[] all = new long[mThreads * operationsPerThread];
+        int n = 0;
+        for (Map.Entry<Op, List<Long>> entry : latencies.entrySet()) {
+            long[] nanos = new long[entry.getValue().size()];
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = entry.getValue().get(i);
+                all[n++] = nanos[i];
+            }
+            report.record(prefix + "_" + entry.getKey().name().toLowerCase(Locale.US),
+                    nanos.length / seconds, nanos, description);
+        }
+        report.record(prefix + "_total", all.length / seconds, all, description);
+    }
+
+    /**
+     * Replay operations of the mix on the current thread, returning the latency of each by kind.
+     */
+    private Map<Op, List<Long>> replay(long seed, long maxId, int operations) {
+        Random random = new Random(seed);
+        CatalogGenerator generator = new CatalogGenerator(seed);
+        int totalWeight = 0;
+        for (int weight : mMix.values()) {
+            totalWeight += weight;
+        }
+
+        Map<Op, List<Long>> latencies = new EnumMap<>(Op.class);
+        for (Op op : mMix.keySet()) {
+            latencies.put(op, new ArrayList<Long>(operations));
+        }
+
+        for (int i = 0; i < operations; i++) {
+            Op op = pick(random.nextInt(totalWeight));
+            long id = 1 + (long) (random.nextDouble() * maxId);
+            long start = System.nanoTime();
+            switch (op) {
+                case LOOKUP:
+                    readAll(mResolver.query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                            null, null, null, null));
+                    break;
+                case LIST:
+                    Uri page = ItemEntry.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(ItemEntry.QUERY_PARAMETER_AFTER_ID,
+                                    String.valueOf(id))
+                            .appendQueryParameter(ItemEntry.QUERY_PARAMETER_LIMIT, "100")
+                            .build();
+                    readAll(mResolver.query(page, null, null, null, null));
+                    break;
+                case ADJUST:
+                    Bundle extras = new Bundle();
+                    extras.putLong(ItemContract.EXTRA_ID, id);
+                    extras.putInt(ItemContract.EXTRA_DELTA, generator.nextDelta());
+                    mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ADJUST_AMOUNT,
+                            null, extras);
+                    break;
+                case INSERT:
+                    mResolver.insert(ItemEntry.CONTENT_URI, generator.next());
+                    break;
+            }
+            latencies.get(op).add(System.nanoTime() - start);
+        }
+        return latencies;
+    }
+
+    /**
+     * Return the kind of operation the given draw below the total weight falls on.
+     */
+    private Op pick(int draw) {
+        for (Map.Entry<Op, Integer> entry : mMix.entrySet()) {
+            draw -= entry.getValue();
+            if (draw < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Draw beyond the total weight");
+    }
+
+    private long maxId() {
+        Cursor cursor = mResolver.query(ItemEntry.CONTENT_URI, new String[] { "MAX(_id)" },
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -1,37 +1,152 @@
 package com.elbrus.warehouse.catalog;
 
 import android.app.LoaderManager;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.support.v7.app.AppCompatActivity;
 import android.support.design.widget.FloatingActionButton;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
 
 import com.elbrus.warehouse.catalog.db.ItemContract;
+import com.elbrus.warehouse.catalog.db.ItemRepository;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class CatalogActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
 
-    /** Identifier for the item data loader */
+    /**
+     * Identifier for the item data loader of the first page. Each further page of the list has
+     * its own loader, identified by this value plus the page number.
+     */
     private static final int ITEM_LOADER = 0;
 
-    /** Adapter for the ListView */
+    /** Identifier for the loader of the catalog statistics, apart from the page loaders */
+    private static final int STATS_LOADER = -1;
+
+    /** Number of items loaded at a time while scrolling through the catalog */
+    private static final int PAGE_SIZE = 100;
+
+    /** Loader argument holding the current search text */
+    private static final String ARG_SEARCH_TEXT = "search_text";
+
+    /** Loader argument holding the _id after which a page starts */
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /** Loader argument holding the _id of the last item of a page that has been closed */
+    private static final String ARG_UNTIL_ID = "until_id";
+
+    /** Request code for picking the CSV file to import */
+    private static final int REQUEST_IMPORT = 1;
+
+    /** Saved state holding the loader arguments of every page (ArrayList of Bundle) */
+    private static final String STATE_PAGE_ARGS = "page_args";
+
+    /** Saved state holding the search text typed by the user */
+    private static final String STATE_SEARCH_TEXT = "search_text";
+
+    /** How long to wait after the last keystroke before searching */
+    private static final long SEARCH_DELAY_MILLIS = 250;
+
+    /** Adapter for the RecyclerView */
     ItemCursorAdapter mCursorAdapter;
 
+    /** View shown instead of the list while there are no items */
+    private View mEmptyView;
+
+    /** Header showing the totals of the catalog */
+    private TextView mStatsHeader;
+
+    /** Progress bar shown while writes are running */
+    private ProgressBar mProgressBar;
+
+    /**
+     * Shows the progress bar while the repository has writes pending. The writes can outlive
+     * the activity that started them, a rotation replaces it while they run, so the count lives
+     * in the repository and each started instance listens to it.
+     */
+    private final ItemRepository.PendingWritesListener mPendingWritesListener =
+            new ItemRepository.PendingWritesListener() {
+                @Override
+                public void onPendingWritesChanged(int pendingWrites) {
+                    mProgressBar.setVisibility(pendingWrites > 0 ? View.VISIBLE : View.GONE);
+                }
+            };
+
+    /** Logs the outcome of a delete, without holding on to the activity */
+    private static final ItemRepository.Callback DELETE_FINISHED = new ItemRepository.Callback() {
+        @Override
+        public void onWriteFinished(ContentProviderResult result) {
+            if (result != null) {
+                Log.v("CatalogActivity", result.count + " rows deleted from warehouse database");
+            }
+        }
+    };
+
+    /** Loader arguments of every page requested so far, in list order */
+    private final List<Bundle> mPageArgs = new ArrayList<>();
+
+    /** Loaded cursor of every page requested so far, or null while the page is loading */
+    private final List<Cursor> mPages = new ArrayList<>();
+
+    /** Loads the catalog statistics into the header, and reloads them after every change */
+    private final LoaderManager.LoaderCallbacks<Cursor> mStatsCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
+                @Override
+                public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+                    return new CursorLoader(CatalogActivity.this,
+                            ItemContract.StatsEntry.CONTENT_URI, null, null, null, null);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+                    showStats(data);
+                }
+
+                @Override
+                public void onLoaderReset(Loader<Cursor> loader) {
+                    mStatsHeader.setText(null);
+                }
+            };
+
+    /** Handler used to delay searches until the user stops typing */
+    private final Handler mSearchHandler = new Handler();
+
+    /** Search text typed by the user, searched for by {@link #mSearchRunnable} */
+    private String mSearchText;
+
+    /** Restarts the loader with the latest search text */
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Bundle args = new Bundle();
+            args.putString(ARG_SEARCH_TEXT, mSearchText);
+            restartPages(args);
+        }
+    };
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,22 +163,27 @@ public class CatalogActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the item data
-        ListView itemListView = (ListView) findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the item data
+        RecyclerView itemListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        itemListView.setLayoutManager(layoutManager);
+        itemListView.setHasFixedSize(true);
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        itemListView.setEmptyView(emptyView);
+        // Find the empty view, so that it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Setup an Adapter to create a list item for each row of item data in the Cursor.
-        // There is no item data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new ItemCursorAdapter(this, null);
-        itemListView.setAdapter(mCursorAdapter);
+        // Find the header showing the totals of the catalog
+        mStatsHeader = (TextView) findViewById(R.id.stats_header);
+
+        // Find the progress bar shown while writes are running
+        mProgressBar = (ProgressBar) findViewById(R.id.progress);
 
-        // Setup the item click listener
-        itemListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an Adapter to create a list item for each row of item data in the Cursor.
+        // There is no item data yet (until the loader finishes), and clicking an item
+        // opens it in the editor.
+        mCursorAdapter = new ItemCursorAdapter(this, new ItemCursorAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onItemClick(long id) {
                 // Create new intent to go to {@link EditorActivity}
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
@@ -81,9 +201,151 @@ public class CatalogActivity extends AppCompatActivity implements
                 startActivity(intent);
             }
         });
+        itemListView.setAdapter(mCursorAdapter);
+
+        // Load the next page of items before the user scrolls to the end of the loaded ones
+        itemListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = mCursorAdapter.getItemCount();
+                if (totalItemCount > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= totalItemCount - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // Kick off the loaders of the pages. After a rotation the loader manager still holds
+        // the loaders of every page the previous instance had, with their arguments, so each
+        // of them is taken over with the same arguments. Otherwise start at the first page.
+        ArrayList<Bundle> savedPageArgs = savedInstanceState == null ? null
+                : savedInstanceState.<Bundle>getParcelableArrayList(STATE_PAGE_ARGS);
+        if (savedPageArgs != null && !savedPageArgs.isEmpty()) {
+            mPageArgs.addAll(savedPageArgs);
+        } else {
+            mPageArgs.add(new Bundle());
+        }
+        for (int page = 0; page < mPageArgs.size(); page++) {
+            mPages.add(null);
+            getLoaderManager().initLoader(ITEM_LOADER + page, mPageArgs.get(page), this);
+        }
+
+        // Run a search that was still waiting for the user to stop typing
+        if (savedInstanceState != null) {
+            mSearchText = savedInstanceState.getString(STATE_SEARCH_TEXT);
+            String shownText = mPageArgs.get(0).getString(ARG_SEARCH_TEXT, "");
+            if (mSearchText != null && !mSearchText.equals(shownText)) {
+                search(mSearchText, 0);
+            }
+        }
+
+        // Kick off the loader for the header, which reads a few rows whatever the catalog size
+        getLoaderManager().initLoader(STATS_LOADER, null, mStatsCallbacks);
+
+        // Deleted items are purged in the background, make sure that is scheduled
+        CatalogMaintenanceService.schedule(this);
+    }
+
+    /**
+     * Drop every loaded page and start over from the first page, loaded with the given arguments.
+     */
+    private void restartPages(Bundle args) {
+        for (int page = 1; page < mPageArgs.size(); page++) {
+            getLoaderManager().destroyLoader(ITEM_LOADER + page);
+        }
+        mPageArgs.clear();
+        mPages.clear();
+
+        mPageArgs.add(args);
+        mPages.add(null);
+        getLoaderManager().restartLoader(ITEM_LOADER, args, this);
+    }
+
+    /**
+     * Start loading the page after the last one, unless it is already loading or the last page
+     * reached the end of the catalog.
+     */
+    private void loadNextPage() {
+        int lastPage = mPages.size() - 1;
+        Cursor cursor = mPages.get(lastPage);
+        Bundle args = mPageArgs.get(lastPage);
 
-        // Kick off the loader
-        getLoaderManager().initLoader(ITEM_LOADER, null, this);
+        // A closed page already has a page after it
+        if (cursor == null || args.containsKey(ARG_UNTIL_ID) || cursor.getCount() < PAGE_SIZE) {
+            return;
+        }
+
+        cursor.moveToLast();
+        long lastId = cursor.getLong(cursor.getColumnIndex(ItemContract.ItemEntry._ID));
+
+        // Close the last page at its last item, so when it reloads after a change it keeps
+        // exactly its own range of items and never overlaps the page after it
+        Bundle closedArgs = new Bundle(args);
+        closedArgs.putLong(ARG_UNTIL_ID, lastId);
+        mPageArgs.set(lastPage, closedArgs);
+        getLoaderManager().restartLoader(ITEM_LOADER + lastPage, closedArgs, this);
+
+        // The next page starts right after it, within the same search if there is one
+        Bundle nextArgs = new Bundle();
+        nextArgs.putString(ARG_SEARCH_TEXT, args.getString(ARG_SEARCH_TEXT));
+        nextArgs.putLong(ARG_AFTER_ID, lastId);
+        mPageArgs.add(nextArgs);
+        mPages.add(null);
+        getLoaderManager().initLoader(ITEM_LOADER + lastPage + 1, nextArgs, this);
+    }
+
+    /**
+     * Show every loaded page in the list, up to the first page that is still loading.
+     */
+    private void showPages() {
+        List<Cursor> loaded = new ArrayList<>();
+        for (Cursor cursor : mPages) {
+            if (cursor == null) {
+                break;
+            }
+            loaded.add(cursor);
+        }
+
+        if (loaded.isEmpty()) {
+            mCursorAdapter.swapCursor(null);
+        } else if (loaded.size() == 1) {
+            mCursorAdapter.swapCursor(loaded.get(0));
+        } else {
+            mCursorAdapter.swapCursor(new MergeCursor(loaded.toArray(new Cursor[loaded.size()])));
+        }
+        mEmptyView.setVisibility(mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Show the totals of the catalog statistics in the header.
+     */
+    private void showStats(Cursor cursor) {
+        long items = 0;
+        long units = 0;
+        long[] unitsByPrice = new long[3];
+        int dimensionColumn = cursor.getColumnIndex(ItemContract.StatsEntry.COLUMN_DIMENSION);
+        int bucketColumn = cursor.getColumnIndex(ItemContract.StatsEntry.COLUMN_BUCKET);
+        int itemsColumn = cursor.getColumnIndex(ItemContract.StatsEntry.COLUMN_ITEMS);
+        int unitsColumn = cursor.getColumnIndex(ItemContract.StatsEntry.COLUMN_UNITS);
+
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            String dimension = cursor.getString(dimensionColumn);
+            if (ItemContract.StatsEntry.DIMENSION_TOTAL.equals(dimension)) {
+                items = cursor.getLong(itemsColumn);
+                units = cursor.getLong(unitsColumn);
+            } else if (ItemContract.StatsEntry.DIMENSION_PRICE.equals(dimension)) {
+                int price = cursor.getInt(bucketColumn);
+                if (price >= 0 && price < unitsByPrice.length) {
+                    unitsByPrice[price] = cursor.getLong(unitsColumn);
+                }
+            }
+        }
+
+        mStatsHeader.setText(getString(R.string.stats_header, items, units,
+                unitsByPrice[ItemContract.ItemEntry.PRICE_LOW],
+                unitsByPrice[ItemContract.ItemEntry.PRICE_MIDDLE],
+                unitsByPrice[ItemContract.ItemEntry.PRICE_HIGH]));
     }
 
     /**
@@ -98,19 +360,33 @@ public class CatalogActivity extends AppCompatActivity implements
         values.put(ItemContract.ItemEntry.COLUMN_ITEM_PRICE, 700);
         values.put(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT, 7);
 
-        // Insert a new row for Toto into the provider using the ContentResolver.
-        // Use the {@link ItemEntry#CONTENT_URI} to indicate that we want to insert
-        // into the warehouse database table.
-        // Receive the new content URI that will allow us to access handset's data in the future.
-        Uri newUri = getContentResolver().insert(ItemContract.ItemEntry.CONTENT_URI, values);
+        // Queue the insertion of a new row for the handset into the warehouse database table.
+        // The list picks the new item up through its loader once the write has committed.
+        ItemRepository.getInstance(this).insert(values, null);
     }
 
     /**
      * Helper method to delete all items in the database.
      */
     private void deleteAllItems() {
-        int rowsDeleted = getContentResolver().delete(ItemContract.ItemEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from warehouse database");
+        // Deleting a large catalog takes a while, so it runs on the repository's writer thread
+        // while the progress bar is shown
+        ItemRepository.getInstance(this).delete(ItemContract.ItemEntry.CONTENT_URI,
+                DELETE_FINISHED);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Pick up the writes still running, such as those started before a rotation
+        ItemRepository.getInstance(this).addPendingWritesListener(mPendingWritesListener);
+    }
+
+    @Override
+    protected void onStop() {
+        // Let go of this instance, so writes finishing later don't keep it alive
+        ItemRepository.getInstance(this).removePendingWritesListener(mPendingWritesListener);
+        super.onStop();
     }
 
     @Override
@@ -118,13 +394,72 @@ public class CatalogActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Search as the user types. Every keystroke pushes the search back a little, so the
+        // loader is only restarted once typing pauses.
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query, 0);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText, SEARCH_DELAY_MILLIS);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * Search the catalog for the given text after the given delay, replacing any search
+     * that is still waiting.
+     */
+    private void search(String text, long delayMillis) {
+        mSearchText = text;
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mSearchHandler.postDelayed(mSearchRunnable, delayMillis);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelableArrayList(STATE_PAGE_ARGS, new ArrayList<>(mPageArgs));
+        outState.putString(STATE_SEARCH_TEXT, mSearchText);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT) {
+            // The list picks the imported items up through its loaders chunk by chunk
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                ItemImportService.start(this, data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Import CSV" menu option
+            case R.id.action_import:
+                Intent pick = new Intent(Intent.ACTION_GET_CONTENT)
+                        .setType("text/*")
+                        .addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pick, REQUEST_IMPORT);
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertItem();
@@ -145,9 +480,31 @@ public class CatalogActivity extends AppCompatActivity implements
                 ItemContract.ItemEntry.COLUMN_ITEM_NAME,
                 ItemContract.ItemEntry.COLUMN_ITEM_BRAND };
 
+        // Query one page of the search results while the user is searching, otherwise one
+        // page of the catalog. Both are paged the same way, by _id.
+        Uri.Builder builder;
+        String searchText = bundle.getString(ARG_SEARCH_TEXT);
+        if (!TextUtils.isEmpty(searchText)) {
+            builder = ItemContract.ItemEntry.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_SEARCH, searchText);
+        } else {
+            builder = ItemContract.ItemEntry.CONTENT_URI.buildUpon();
+        }
+        builder.appendQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_AFTER_ID,
+                String.valueOf(bundle.getLong(ARG_AFTER_ID, 0)));
+        if (bundle.containsKey(ARG_UNTIL_ID)) {
+            // A closed page holds everything up to its last item
+            builder.appendQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_UNTIL_ID,
+                    String.valueOf(bundle.getLong(ARG_UNTIL_ID)));
+        } else {
+            builder.appendQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_LIMIT,
+                    String.valueOf(PAGE_SIZE));
+        }
+        Uri uri = builder.build();
+
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
-                ItemContract.ItemEntry.CONTENT_URI,   // Provider content URI to query
+                uri,                    // Provider content URI to query
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
@@ -156,13 +513,24 @@ public class CatalogActivity extends AppCompatActivity implements
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link ItemCursorAdapter} with this new cursor containing updated item data
-        mCursorAdapter.swapCursor(data);
+        // Ignore pages that were dropped while they were loading
+        int page = loader.getId() - ITEM_LOADER;
+        if (page >= mPages.size()) {
+            return;
+        }
+
+        // Update {@link ItemCursorAdapter} with the new cursor of this page
+        mPages.set(page, data);
+        showPages();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        // Callback called when the data of a page needs to be deleted
+        int page = loader.getId() - ITEM_LOADER;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+        }
+        showPages();
     }
 }
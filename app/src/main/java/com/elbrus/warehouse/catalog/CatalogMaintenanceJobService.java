@@ -0,0 +1,34 @@
+package com.elbrus.warehouse.catalog;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * Runs the catalog maintenance scheduled by {@link CatalogMaintenanceService#schedule} on
+ * Lollipop and later.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CatalogMaintenanceJobService extends JobService {
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        // Jobs are started on the main thread, the maintenance runs on a thread of its own
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean failed = CatalogMaintenanceService.runMaintenance(
+                        CatalogMaintenanceJobService.this) == null;
+                jobFinished(params, failed);
+            }
+        }, "CatalogMaintenance").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Every step of the maintenance commits on its own, the next run picks up the rest
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package com.elbrus.warehouse.catalog;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.elbrus.warehouse.catalog.db.ItemContract;
+import com.elbrus.warehouse.catalog.sync.CatalogSyncClient;
+
+/**
+ * Runs catalog maintenance in the background once a day: purges items deleted more than
+ * {@link #TOMBSTONE_RETENTION_MILLIS} ago, and already pushed by {@link CatalogSyncClient} if
+ * the catalog is synced, folds stock movements older than {@link #MOVEMENT_RETENTION_MILLIS}
+ * into snapshots, releases the space they took and refreshes the query planner statistics.
+ *
+ * From Lollipop on the work is scheduled with {@link JobScheduler} through
+ * {@link CatalogMaintenanceJobService}, so it waits for the device to be idle and charging.
+ * Older devices have no background limits, and an inexact alarm starts this service instead.
+ */
+public class CatalogMaintenanceService extends IntentService {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogMaintenanceService.class.getSimpleName();
+
+    /** How long deleted items are kept before maintenance purges them */
+    static final long TOMBSTONE_RETENTION_MILLIS = AlarmManager.INTERVAL_DAY;
+
+    /** How long stock movements are kept before maintenance folds them into snapshots */
+    static final long MOVEMENT_RETENTION_MILLIS = 30 * AlarmManager.INTERVAL_DAY;
+
+    /** Identifier of the maintenance job */
+    private static final int JOB_ID = 1;
+
+    public CatalogMaintenanceService() {
+        super(CatalogMaintenanceService.class.getSimpleName());
+    }
+
+    /**
+     * Schedule the daily maintenance, if it isn't scheduled already.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            JobScheduler scheduler =
+                    (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            for (JobInfo job : scheduler.getAllPendingJobs()) {
+                if (job.getId() == JOB_ID) {
+                    return;
+                }
+            }
+            scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                    new ComponentName(context, CatalogMaintenanceJobService.class))
+                    .setPeriodic(AlarmManager.INTERVAL_DAY)
+                    .setRequiresDeviceIdle(true)
+                    .setRequiresCharging(true)
+                    .setPersisted(false)
+                    .build());
+        } else {
+            // Setting the alarm again would replace it and push its first run back by a day on
+            // every launch, so only set it when it isn't set yet. The pending intent exists
+            // exactly as long as the alarm holds it, until a reboot clears both.
+            Intent intent = new Intent(context, CatalogMaintenanceService.class);
+            if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+                return;
+            }
+            PendingIntent operation = PendingIntent.getService(context, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_DAY,
+                    AlarmManager.INTERVAL_DAY, operation);
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        runMaintenance(this);
+    }
+
+    /**
+     * Run the maintenance on the calling thread and return its result, or null if it failed.
+     */
+    static Bundle runMaintenance(Context context) {
+        Bundle extras = new Bundle();
+        long now = System.currentTimeMillis();
+        extras.putLong(ItemContract.EXTRA_PURGE_BEFORE, now - TOMBSTONE_RETENTION_MILLIS);
+        extras.putLong(ItemContract.EXTRA_COMPACT_BEFORE, now - MOVEMENT_RETENTION_MILLIS);
+
+        // Once the catalog is mirrored, keep the deletions the mirror hasn't seen yet
+        long pushedVersion = CatalogSyncClient.getPushedVersion(context);
+        if (pushedVersion >= 0) {
+            extras.putLong(ItemContract.EXTRA_PURGE_MAX_VERSION, pushedVersion);
+        }
+        try {
+            return context.getContentResolver().call(ItemContract.ItemEntry.CONTENT_URI,
+                    ItemContract.METHOD_RUN_MAINTENANCE, null, extras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Maintenance failed", e);
+            return null;
+        }
+    }
+}
@@ -2,7 +2,10 @@ package com.elbrus.warehouse.catalog;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -24,6 +27,7 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.elbrus.warehouse.catalog.db.ItemContract;
+import com.elbrus.warehouse.catalog.db.ItemRepository;
 
 /**
  * Allows user to create a new item or edit an existing one.
@@ -51,6 +55,15 @@ public class EditorActivity extends AppCompatActivity implements
 
     private int mPrice = ItemContract.ItemEntry.PRICE_LOW;
 
+    /** Price tier of the existing item when it was loaded */
+    private int mLoadedPrice;
+
+    /** Amount of the existing item when it was loaded, edits are saved as a change from it */
+    private int mLoadedAmount;
+
+    /** Version of the existing item when it was loaded, the save only applies if it is unchanged */
+    private long mLoadedVersion;
+
     /** Boolean flag that keeps track of whether the item has been edited (true) or not (false) */
     private boolean mItemHasChanged = false;
 
@@ -184,42 +197,75 @@ public class EditorActivity extends AppCompatActivity implements
         }
         values.put(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT, amount);
 
+        // The writes run on the repository's writer thread and report back after this
+        // activity has closed, so the toasts are shown with the application context.
+        final Context context = getApplicationContext();
+        ItemRepository repository = ItemRepository.getInstance(this);
+
         // Determine if this is a new or existing item by checking if mCurrentItemUri is null or not
         if (mCurrentItemUri == null) {
-            // This is a NEW item, so insert a new item into the provider,
-            // returning the content URI for the new item.
-            Uri newUri = getContentResolver().insert(ItemContract.ItemEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_item_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_item_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // This is a NEW item, so queue the insertion of a new item into the provider,
+            // which reports back the content URI for the new item.
+            repository.insert(values, new ItemRepository.Callback() {
+                @Override
+                public void onWriteFinished(ContentProviderResult result) {
+                    // Show a toast message depending on whether or not the insertion was successful.
+                    if (result == null || result.uri == null) {
+                        // If the new content URI is null, then there was an error with insertion.
+                        showToast(context, R.string.editor_insert_item_failed);
+                    } else {
+                        // Otherwise, the insertion was successful and we can display a toast.
+                        showToast(context, R.string.editor_insert_item_successful);
+                    }
+                }
+            });
         } else {
-            // Otherwise this is an EXISTING item, so update the item with content URI: mCurrentItemUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentItemUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentItemUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_item_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_item_successful),
-                        Toast.LENGTH_SHORT).show();
+            // Otherwise this is an EXISTING item. The amount isn't written as is, because somebody
+            // else may have changed it since it was loaded. Instead the change the user made is
+            // applied on top of whatever the amount is now.
+            values.remove(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
+
+            // Writing the tier reprices the item at the value of the tier, so only write it when
+            // the user picked another one, and keep the price in cents of the item otherwise
+            if (mPrice == mLoadedPrice) {
+                values.remove(ItemContract.ItemEntry.COLUMN_ITEM_PRICE);
             }
+
+            // Queue the update of the item together with the amount change. Both only apply if
+            // nobody changed the item since it was loaded, so the edit can't silently overwrite
+            // a newer one, and they are saved or refused as one.
+            Bundle extras = new Bundle();
+            extras.putLong(ItemContract.EXTRA_ID, ContentUris.parseId(mCurrentItemUri));
+            extras.putLong(ItemContract.EXTRA_EXPECTED_VERSION, mLoadedVersion);
+            extras.putParcelable(ItemContract.EXTRA_VALUES, values);
+            extras.putInt(ItemContract.EXTRA_DELTA, amount - mLoadedAmount);
+            repository.call(ItemContract.METHOD_UPDATE_ITEM, extras,
+                    new ItemRepository.CallCallback() {
+                        @Override
+                        public void onCallFinished(Bundle result) {
+                            int outcome = result == null ? ItemContract.UPDATE_NOT_FOUND
+                                    : result.getInt(ItemContract.EXTRA_UPDATE_RESULT);
+                            if (outcome == ItemContract.UPDATE_APPLIED) {
+                                showToast(context, R.string.editor_update_item_successful);
+                            } else if (outcome == ItemContract.UPDATE_CONFLICT) {
+                                showToast(context, R.string.editor_update_item_conflict);
+                            } else if (outcome == ItemContract.UPDATE_REJECTED) {
+                                showToast(context, R.string.editor_update_item_rejected);
+                            } else {
+                                showToast(context, R.string.editor_update_item_failed);
+                            }
+                        }
+                    });
         }
     }
 
+    /**
+     * Show a short toast with the given message.
+     */
+    private static void showToast(Context context, int messageId) {
+        Toast.makeText(context, context.getString(messageId), Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -322,7 +368,8 @@ public class EditorActivity extends AppCompatActivity implements
                 ItemContract.ItemEntry.COLUMN_ITEM_NAME,
                 ItemContract.ItemEntry.COLUMN_ITEM_BRAND,
                 ItemContract.ItemEntry.COLUMN_ITEM_PRICE,
-                ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT };
+                ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT,
+                ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION };
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -359,6 +406,10 @@ public class EditorActivity extends AppCompatActivity implements
             mNameEditText.setText(name);
             mBrandEditText.setText(brand);
             mAmountEditText.setText(Integer.toString(amount));
+            mLoadedAmount = amount;
+            mLoadedPrice = price;
+            mLoadedVersion = cursor.getLong(
+                    cursor.getColumnIndex(ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION));
 
             // Gender is a dropdown spinner, so map the constant value from the database
             // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
@@ -450,21 +501,22 @@ public class EditorActivity extends AppCompatActivity implements
     private void deleteItem() {
         // Only perform the delete if this is an existing item.
         if (mCurrentItemUri != null) {
-            // Call the ContentResolver to delete the item at the given content URI.
-            // Pass in null for the selection and selection args because the mCurrentItemUri
+            // Queue the deletion of the item at the given content URI. The mCurrentItemUri
             // content URI already identifies the item that we want.
-            int rowsDeleted = getContentResolver().delete(mCurrentItemUri, null, null);
-
-            // Show a toast message depending on whether or not the delete was successful.
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, getString(R.string.editor_delete_item_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_delete_item_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            final Context context = getApplicationContext();
+            ItemRepository.getInstance(this).delete(mCurrentItemUri, new ItemRepository.Callback() {
+                @Override
+                public void onWriteFinished(ContentProviderResult result) {
+                    // Show a toast message depending on whether or not the delete was successful.
+                    if (result == null || result.count == null || result.count == 0) {
+                        // If no rows were deleted, then there was an error with the delete.
+                        showToast(context, R.string.editor_delete_item_failed);
+                    } else {
+                        // Otherwise, the delete was successful and we can display a toast.
+                        showToast(context, R.string.editor_delete_item_successful);
+                    }
+                }
+            });
         }
 
         // Close the activity
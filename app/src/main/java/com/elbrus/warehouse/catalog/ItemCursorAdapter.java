@@ -1,81 +1,186 @@
 package com.elbrus.warehouse.catalog;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.text.TextUtils;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.TextView;
 
 import com.elbrus.warehouse.catalog.db.ItemContract;
 
 /**
- * {@link ItemCursorAdapter} is an adapter for a list or grid view
+ * {@link ItemCursorAdapter} is an adapter for a {@link RecyclerView}
  * that uses a {@link Cursor} of item data as its data source. This adapter knows
  * how to create list items for each row of item data in the {@link Cursor}.
+ *
+ * Binding a row allocates nothing: views are cached in the {@link ViewHolder}, column indices
+ * are looked up once per cursor, and text is copied out of the cursor into character buffers
+ * owned by the view holder.
  */
-public class ItemCursorAdapter extends CursorAdapter {
+public class ItemCursorAdapter extends RecyclerView.Adapter<ItemCursorAdapter.ViewHolder> {
+
+    /**
+     * Interface for receiving clicks on the items of the list.
+     */
+    public interface OnItemClickListener {
+        /**
+         * Called when the item with the given _id has been clicked.
+         */
+        void onItemClick(long id);
+    }
+
+    /** Inflater for the list item layout */
+    private final LayoutInflater mInflater;
+
+    /** Text shown when an item has no brand, looked up once instead of for every row */
+    private final char[] mUnknownBrand;
+
+    /** Listener notified when an item is clicked */
+    private final OnItemClickListener mListener;
+
+    /** The cursor from which to get the data, or null if there is none yet */
+    private Cursor mCursor;
+
+    /** Index of the _id column in {@link #mCursor} */
+    private int mIdColumnIndex;
+
+    /** Index of the name column in {@link #mCursor} */
+    private int mNameColumnIndex;
+
+    /** Index of the brand column in {@link #mCursor} */
+    private int mBrandColumnIndex;
+
     /**
      * Constructs a new {@link ItemCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context  The context
+     * @param listener The listener notified when an item is clicked.
+     */
+    public ItemCursorAdapter(Context context, OnItemClickListener listener) {
+        mInflater = LayoutInflater.from(context);
+        mUnknownBrand = context.getString(R.string.unknown_brand).toCharArray();
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Swap in a new cursor, returning the old one. The old cursor is not closed, that is up to
+     * whoever owns it (usually the loader that created it).
+     *
+     * @param newCursor The new cursor to be used, or null for none.
+     * @return the previously set cursor, or null if there wasn't one.
      */
-    public ItemCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0);
+    public Cursor swapCursor(Cursor newCursor) {
+        if (newCursor == mCursor) {
+            return null;
+        }
+        Cursor oldCursor = mCursor;
+        mCursor = newCursor;
+
+        // Find the columns of item attributes that we're interested in, once for the whole cursor
+        if (newCursor != null) {
+            mIdColumnIndex = newCursor.getColumnIndexOrThrow(ItemContract.ItemEntry._ID);
+            mNameColumnIndex = newCursor.getColumnIndexOrThrow(ItemContract.ItemEntry.COLUMN_ITEM_NAME);
+            mBrandColumnIndex = newCursor.getColumnIndexOrThrow(ItemContract.ItemEntry.COLUMN_ITEM_BRAND);
+        }
+
+        notifyDataSetChanged();
+        return oldCursor;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCursor == null ? 0 : mCursor.getCount();
     }
 
+    @Override
+    public long getItemId(int position) {
+        if (mCursor == null || !mCursor.moveToPosition(position)) {
+            return RecyclerView.NO_ID;
+        }
+        return mCursor.getLong(mIdColumnIndex);
+    }
 
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param parent   The parent to which the new view is attached to
+     * @param viewType The view type of the new view.
+     * @return a view holder for the newly created list item view.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         // Inflate a list item view using the layout specified in list_item.xml
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(mInflater.inflate(R.layout.list_item, parent, false));
     }
 
-
     /**
-     * This method binds the item data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current item can be set on the name TextView
-     * in the list item layout.
+     * This method binds the item data (in the row of the cursor at the given position) to the
+     * views of the given view holder. For example, the name for the current item can be set on
+     * the name TextView in the list item layout.
      *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * @param holder   View holder returned earlier by onCreateViewHolder()
+     * @param position The position of the item in the cursor.
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        // Find individual views that we want to modify in the list item layout
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        if (!mCursor.moveToPosition(position)) {
+            return;
+        }
+
+        holder.mId = mCursor.getLong(mIdColumnIndex);
 
-        // Find the columns of item attributes that we're interested in
-        int nameColumnIndex = cursor.getColumnIndex(ItemContract.ItemEntry.COLUMN_ITEM_NAME);
-        int brandColumnIndex = cursor.getColumnIndex(ItemContract.ItemEntry.COLUMN_ITEM_BRAND);
+        // Copy the item attributes from the Cursor straight into the holder's buffers
+        mCursor.copyStringToBuffer(mNameColumnIndex, holder.mNameBuffer);
+        mCursor.copyStringToBuffer(mBrandColumnIndex, holder.mBrandBuffer);
 
-        // Read the item attributes from the Cursor for the current item
-        String itemName = cursor.getString(nameColumnIndex);
-        String itemBrand = cursor.getString(brandColumnIndex);
+        // Update the TextViews with the attributes for the current item
+        holder.mNameTextView.setText(holder.mNameBuffer.data, 0, holder.mNameBuffer.sizeCopied);
 
         // If the item brand is empty string or null, then use some default text
         // that says "Unknown brand", so the TextView isn't blank.
-        if (TextUtils.isEmpty(itemBrand)) {
-            itemBrand = context.getString(R.string.unknown_brand);
+        if (holder.mBrandBuffer.sizeCopied == 0) {
+            holder.mSummaryTextView.setText(mUnknownBrand, 0, mUnknownBrand.length);
+        } else {
+            holder.mSummaryTextView.setText(holder.mBrandBuffer.data, 0,
+                    holder.mBrandBuffer.sizeCopied);
         }
+    }
 
-        // Update the TextViews with the attributes for the current item
-        nameTextView.setText(itemName);
-        summaryTextView.setText(itemBrand);
+    /**
+     * Holds the views of a single list item along with the buffers its text is copied into.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        /** TextView showing the item's name */
+        final TextView mNameTextView;
+
+        /** TextView showing the item's brand */
+        final TextView mSummaryTextView;
+
+        /** Buffer the item's name is copied into, reused for every row bound to this holder */
+        final CharArrayBuffer mNameBuffer = new CharArrayBuffer(64);
+
+        /** Buffer the item's brand is copied into, reused for every row bound to this holder */
+        final CharArrayBuffer mBrandBuffer = new CharArrayBuffer(32);
+
+        /** _id of the item currently bound to this holder */
+        long mId;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            // Find individual views that we want to modify in the list item layout
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mSummaryTextView = (TextView) itemView.findViewById(R.id.summary);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            mListener.onItemClick(mId);
+        }
     }
 }
@@ -0,0 +1,113 @@
+package com.elbrus.warehouse.catalog;
+
+import android.app.IntentService;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.elbrus.warehouse.catalog.db.ItemImporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Imports a CSV file of items into the catalog in the background, showing its progress in a
+ * notification. The intent is redelivered if the process dies during the import, and the
+ * import then resumes after its last committed chunk.
+ */
+public class ItemImportService extends IntentService {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ItemImportService.class.getSimpleName();
+
+    /** Identifier of the notification showing the progress of the import */
+    private static final int NOTIFICATION_ID = 1;
+
+    /** Notification channel for imports, needed from Android O on */
+    private static final String CHANNEL_ID = "import";
+
+    /**
+     * Start importing the CSV file at the given URI.
+     */
+    public static void start(Context context, Uri uri) {
+        // Pass the read permission on, the picker only granted it to the calling activity
+        context.startService(new Intent(context, ItemImportService.class)
+                .setData(uri)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION));
+    }
+
+    public ItemImportService() {
+        super(ItemImportService.class.getSimpleName());
+        // Get the intent back if the process dies, so the import resumes
+        setIntentRedelivery(true);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || intent.getData() == null) {
+            return;
+        }
+        Uri uri = intent.getData();
+
+        final NotificationManager manager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.import_channel_name), NotificationManager.IMPORTANCE_LOW));
+        }
+        final NotificationCompat.Builder notification = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(getString(R.string.import_in_progress))
+                .setOngoing(true)
+                .setProgress(0, 0, true);
+        startForeground(NOTIFICATION_ID, notification.build());
+
+        ItemImporter.Progress progress = null;
+        try {
+            InputStream in = getContentResolver().openInputStream(uri);
+            if (in == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+            try {
+                progress = new ItemImporter(getContentResolver()).importCsv(uri.toString(),
+                        new InputStreamReader(in, Charset.forName("UTF-8")),
+                        new ItemImporter.ProgressListener() {
+                            @Override
+                            public void onProgress(ItemImporter.Progress progress) {
+                                notification.setContentText(getString(R.string.import_progress,
+                                        progress.records, (int) progress.rowsPerSecond()));
+                                manager.notify(NOTIFICATION_ID, notification.build());
+                            }
+                        });
+            } finally {
+                in.close();
+            }
+            Log.i(LOG_TAG, "Imported " + uri + ": " + progress);
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Import of " + uri + " failed", e);
+        } finally {
+            stopForeground(true);
+        }
+
+        // Replace the progress with the outcome of the import
+        notification.setOngoing(false)
+                .setProgress(0, 0, false)
+                .setSmallIcon(android.R.drawable.stat_sys_download_done);
+        if (progress != null) {
+            notification.setContentTitle(getString(R.string.import_finished))
+                    .setContentText(getString(R.string.import_summary,
+                            progress.accepted, progress.rejected));
+        } else {
+            notification.setContentTitle(getString(R.string.import_failed))
+                    .setContentText(null);
+        }
+        manager.notify(NOTIFICATION_ID, notification.build());
+    }
+}
@@ -0,0 +1,106 @@
+package com.elbrus.warehouse.catalog;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+import android.support.v4.app.NotificationCompat;
+
+import com.elbrus.warehouse.catalog.db.ItemContract;
+
+/**
+ * Raises a notification for each item that an amount adjustment took down to its reorder
+ * point. {@link com.elbrus.warehouse.catalog.db.ItemProvider} spots the crossing as part of the
+ * adjustment itself and enqueues the items here, so nothing ever rescans the catalog. Items
+ * that were restocked again by the time the work runs are skipped.
+ */
+public class LowStockAlertService extends JobIntentService {
+
+    /** Identifier of the alert work, unique among the jobs of the app */
+    private static final int JOB_ID = 2;
+
+    /** Tag of the low-stock notifications, each identified by the _id of its item */
+    private static final String NOTIFICATION_TAG = "low_stock";
+
+    /** Notification channel for low-stock alerts, needed from Android O on */
+    private static final String CHANNEL_ID = "low_stock";
+
+    /** Intent extra holding the _ids of the items that ran low */
+    private static final String EXTRA_IDS = "ids";
+
+    /**
+     * Enqueue alerts for the items with the given _ids.
+     */
+    public static void enqueue(Context context, long[] ids) {
+        enqueueWork(context, LowStockAlertService.class, JOB_ID,
+                new Intent().putExtra(EXTRA_IDS, ids));
+    }
+
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        long[] ids = intent.getLongArrayExtra(EXTRA_IDS);
+        if (ids == null || ids.length == 0) {
+            return;
+        }
+
+        NotificationManager manager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.low_stock_channel_name),
+                    NotificationManager.IMPORTANCE_DEFAULT));
+        }
+
+        String[] projection = {
+                ItemContract.ItemEntry._ID,
+                ItemContract.ItemEntry.COLUMN_ITEM_NAME,
+                ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT,
+                ItemContract.ItemEntry.COLUMN_ITEM_REORDER_POINT };
+
+        // Read the items from the low-stock URI, which leaves out the ones restocked meanwhile
+        StringBuilder selection = new StringBuilder(ItemContract.ItemEntry._ID + " IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = getContentResolver().query(ItemContract.ItemEntry.CONTENT_LOW_STOCK_URI,
+                projection, selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+
+                // Tapping the alert opens the item in the editor
+                Uri itemUri = ContentUris.withAppendedId(ItemContract.ItemEntry.CONTENT_URI, id);
+                PendingIntent open = PendingIntent.getActivity(this, 0,
+                        new Intent(this, EditorActivity.class).setData(itemUri),
+                        PendingIntent.FLAG_UPDATE_CURRENT);
+
+                manager.notify(NOTIFICATION_TAG, (int) id,
+                        new NotificationCompat.Builder(this, CHANNEL_ID)
+                                .setSmallIcon(android.R.drawable.stat_sys_warning)
+                                .setContentTitle(getString(R.string.low_stock_title,
+                                        cursor.getString(1)))
+                                .setContentText(getString(R.string.low_stock_text,
+                                        cursor.getInt(2), cursor.getInt(3)))
+                                .setContentIntent(open)
+                                .setAutoCancel(true)
+                                .build());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
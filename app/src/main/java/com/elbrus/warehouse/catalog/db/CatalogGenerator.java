@@ -0,0 +1,130 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import java.util.Random;
+
+/**
+ * Deterministic generator of synthetic catalog items, for load tests and benchmarks.
+ *
+ * The same seed always produces the same items. The data is shaped like a real catalog: a few
+ * brands make up most of the items, names are built from product types, series and model
+ * numbers so they share prefixes the way real names do, cheap items are the most common, and
+ * stock amounts are heavily skewed towards small values with some items out of stock.
+ */
+public final class CatalogGenerator {
+
+    /** Rows per bulk insert while filling the catalog */
+    private static final int BATCH_SIZE = 1000;
+
+    /** Brands, the earlier ones far more common than the later ones */
+    private static final String[] BRANDS = {
+            "Samsung", "Apple", "Xiaomi", "Lenovo", "Sony", "LG", "Huawei", "Asus", "Acer",
+            "Philips", "Panasonic", "Bosch", "Dell", "HP", "JBL", "Canon", "Nikon", "Garmin",
+            "Logitech", "Motorola" };
+
+    private static final String[] TYPES = {
+            "Phone", "TV", "Laptop", "Tablet", "Headphones", "Monitor", "Speaker", "Camera",
+            "Watch", "Router", "Keyboard", "Mouse", "Charger", "Cable", "Case" };
+
+    private static final String[] SERIES = {
+            "Pro", "Max", "Lite", "Plus", "Ultra", "Mini", "Air", "Neo", "Prime", "Edge" };
+
+    /** Share of items without a brand */
+    private static final double NO_BRAND = 0.05;
+
+    /** Share of items out of stock */
+    private static final double OUT_OF_STOCK = 0.08;
+
+    /** Largest amount in stock of a single item */
+    private static final int MAX_AMOUNT = 1000;
+
+    private final Random mRandom;
+
+    /**
+     * Constructs a new {@link CatalogGenerator}.
+     *
+     * @param seed seed of the generator, the same seed produces the same items
+     */
+    public CatalogGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Return the next item.
+     */
+    public ContentValues next() {
+        ContentValues values = new ContentValues();
+        String brand = mRandom.nextDouble() < NO_BRAND ? null : BRANDS[zipf(BRANDS.length)];
+        values.put(ItemEntry.COLUMN_ITEM_NAME, TYPES[zipf(TYPES.length)] + " "
+                + SERIES[mRandom.nextInt(SERIES.length)] + " "
+                + (1 + mRandom.nextInt(99)) + (char) ('A' + mRandom.nextInt(6)));
+        values.put(ItemEntry.COLUMN_ITEM_BRAND, brand);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, nextPrice());
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, nextAmount());
+        return values;
+    }
+
+    /**
+     * Return the given number of next items.
+     */
+    public ContentValues[] next(int count) {
+        ContentValues[] items = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = next();
+        }
+        return items;
+    }
+
+    /**
+     * Bulk insert the given number of next items into the catalog. Return the number of items
+     * inserted.
+     */
+    public int fill(ContentResolver resolver, int count) {
+        int inserted = 0;
+        for (int remaining = count; remaining > 0; remaining -= BATCH_SIZE) {
+            inserted += resolver.bulkInsert(ItemEntry.CONTENT_URI,
+                    next(Math.min(BATCH_SIZE, remaining)));
+        }
+        return inserted;
+    }
+
+    /**
+     * Return a random amount to add to or take from the stock of an item: mostly a few units,
+     * sometimes a whole delivery.
+     */
+    public int nextDelta() {
+        int units = 1 + (int) (Math.pow(mRandom.nextDouble(), 4) * 50);
+        return mRandom.nextInt(3) == 0 ? units : -units;
+    }
+
+    private int nextPrice() {
+        double p = mRandom.nextDouble();
+        if (p < 0.55) {
+            return ItemEntry.PRICE_LOW;
+        }
+        return p < 0.85 ? ItemEntry.PRICE_MIDDLE : ItemEntry.PRICE_HIGH;
+    }
+
+    private int nextAmount() {
+        if (mRandom.nextDouble() < OUT_OF_STOCK) {
+            return 0;
+        }
+        // Cubing a uniform value piles most items up near zero with a long tail
+        return 1 + (int) (Math.pow(mRandom.nextDouble(), 3) * (MAX_AMOUNT - 1));
+    }
+
+    /**
+     * Return an index below n where index k is drawn about twice as often as index 2k,
+     * following Zipf's law.
+     */
+    private int zipf(int n) {
+        // Inverse of the cumulative distribution of weights 1/(k+1), approximated by a log
+        double u = mRandom.nextDouble();
+        int k = (int) Math.floor(Math.exp(u * Math.log(n + 1))) - 1;
+        return Math.min(Math.max(k, 0), n - 1);
+    }
+}
@@ -1,6 +1,7 @@
 package com.elbrus.warehouse.catalog.db;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -36,6 +37,333 @@ public final class ItemContract {
      */
     public static final String PATH_ITEMS = "items";
 
+    /**
+     * Path (appended to the items path) for full-text searches over item names and brands.
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path (appended to the items path) for exporting items as a file.
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Path (appended to the items path) for the feed of changed items.
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Path (appended to the items path) for looking items up by SKU.
+     */
+    public static final String PATH_SKU = "sku";
+
+    /**
+     * Path (appended to the items path) for the catalog statistics.
+     */
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path (appended to the items path) for the items at or below their reorder point.
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    /**
+     * Path (appended to the URI of a single item) for the stock movements of the item.
+     */
+    public static final String PATH_MOVEMENTS = "movements";
+
+    /**
+     * Provider method, for use with {@link android.content.ContentResolver#call}, that sets how
+     * long change notifications are collected before they are sent. Every URI changed during the
+     * window is notified once when it closes, so a burst of edits wakes each observer only once.
+     * The window length in milliseconds goes in {@link #EXTRA_WINDOW_MILLIS}; 0 (the default)
+     * sends notifications as soon as each write commits.
+     */
+    public static final String METHOD_SET_NOTIFICATION_WINDOW = "set_notification_window";
+
+    /** Extra of {@link #METHOD_SET_NOTIFICATION_WINDOW} holding the window length in ms */
+    public static final String EXTRA_WINDOW_MILLIS = "window_millis";
+
+    /**
+     * Provider method that adds a delta to the amount of one item in a single statement, so
+     * concurrent adjustments of the same item never overwrite each other. The item goes in
+     * {@link #EXTRA_ID} and the (possibly negative) delta in {@link #EXTRA_DELTA}. The result
+     * holds the new amount in {@link #EXTRA_AMOUNT}, or {@link #AMOUNT_NOT_ADJUSTED} if the item
+     * doesn't exist or the delta would take its amount below zero, in which case nothing changes.
+     */
+    public static final String METHOD_ADJUST_AMOUNT = "adjust_amount";
+
+    /**
+     * Provider method that applies many amount adjustments in one call and one transaction.
+     * The items go in {@link #EXTRA_IDS} and the deltas, in the same order, in
+     * {@link #EXTRA_DELTAS}. Each adjustment is checked on its own as for
+     * {@link #METHOD_ADJUST_AMOUNT}, and the result holds the new amounts in the same order
+     * in {@link #EXTRA_AMOUNTS}.
+     */
+    public static final String METHOD_ADJUST_AMOUNTS = "adjust_amounts";
+
+    /** Extra holding the _id of a single item (long) */
+    public static final String EXTRA_ID = "id";
+
+    /** Extra holding the _ids of several items (long[]) */
+    public static final String EXTRA_IDS = "ids";
+
+    /** Extra holding the amount delta for a single item (int) */
+    public static final String EXTRA_DELTA = "delta";
+
+    /** Extra holding the amount deltas for several items (int[]) */
+    public static final String EXTRA_DELTAS = "deltas";
+
+    /** Extra holding the new amount of a single item (int) */
+    public static final String EXTRA_AMOUNT = "amount";
+
+    /** Extra holding the new amounts of several items (int[]) */
+    public static final String EXTRA_AMOUNTS = "amounts";
+
+    /** Amount reported for an adjustment that was rejected */
+    public static final int AMOUNT_NOT_ADJUSTED = -1;
+
+    /**
+     * Extra of {@link #METHOD_ADJUST_AMOUNT} and {@link #METHOD_ADJUST_AMOUNTS} holding the
+     * reason recorded with the stock movements (String), {@link MovementEntry#REASON_ADJUSTMENT}
+     * if not given.
+     */
+    public static final String EXTRA_REASON = "reason";
+
+    /**
+     * Provider method that updates one item only if nobody changed it since it was read, so a
+     * stale editor can't overwrite a newer edit. The item goes in {@link #EXTRA_ID}, the
+     * {@link ItemEntry#COLUMN_ITEM_CHANGE_VERSION} it had when read in
+     * {@link #EXTRA_EXPECTED_VERSION} and the new values in {@link #EXTRA_VALUES}. A delta to
+     * add to the amount may go in {@link #EXTRA_DELTA}, journaled with {@link #EXTRA_REASON}, and
+     * is applied as by {@link #METHOD_ADJUST_AMOUNT}. The version check, the values and the delta
+     * are one transaction: if the delta is rejected, nothing is written and the result is
+     * {@link #UPDATE_REJECTED}. The result holds one of {@link #UPDATE_APPLIED},
+     * {@link #UPDATE_CONFLICT}, {@link #UPDATE_NOT_FOUND} or {@link #UPDATE_REJECTED} in
+     * {@link #EXTRA_UPDATE_RESULT}, the version of the item read in the same transaction in
+     * {@link #EXTRA_VERSION}, to retry against on a conflict, and the new amount in
+     * {@link #EXTRA_AMOUNT} if a delta was applied.
+     */
+    public static final String METHOD_UPDATE_ITEM = "update_item";
+
+    /** Extra holding the version an item had when it was read (long) */
+    public static final String EXTRA_EXPECTED_VERSION = "expected_version";
+
+    /** Extra holding the values to write (ContentValues) */
+    public static final String EXTRA_VALUES = "values";
+
+    /** Extra holding the outcome of {@link #METHOD_UPDATE_ITEM} (int) */
+    public static final String EXTRA_UPDATE_RESULT = "update_result";
+
+    /** Extra holding the current version of an item (long) */
+    public static final String EXTRA_VERSION = "version";
+
+    /** Possible values of {@link #EXTRA_UPDATE_RESULT} */
+    public static final int UPDATE_APPLIED = 0;
+    public static final int UPDATE_CONFLICT = 1;
+    public static final int UPDATE_NOT_FOUND = 2;
+    public static final int UPDATE_REJECTED = 3;
+
+    /**
+     * Provider method that returns the amounts of items at a point in time. The items go in
+     * {@link #EXTRA_IDS} and the time, in milliseconds since the epoch, in
+     * {@link #EXTRA_TIMESTAMP}. Each amount is the latest snapshot of the item plus the stock
+     * movements recorded after it, so it costs one snapshot and a short tail of movements. The
+     * result holds the amounts in the same order in {@link #EXTRA_AMOUNTS}, or
+     * {@link #STOCK_NOT_AVAILABLE} for times that compaction already folded away.
+     */
+    public static final String METHOD_STOCK_AT = "stock_at";
+
+    /** Amount reported for a time older than the latest snapshot of the item */
+    public static final int STOCK_NOT_AVAILABLE = -1;
+
+    /**
+     * Provider method that reports how well the provider's query cache is doing: the number of
+     * queries answered from it in {@link #EXTRA_CACHE_HITS}, the number that went to the database
+     * in {@link #EXTRA_CACHE_MISSES}, and the rows held and allowed in {@link #EXTRA_CACHE_ROWS}
+     * and {@link #EXTRA_CACHE_MAX_ROWS}. If {@link #EXTRA_RESET} is true, the cache is emptied
+     * and the counters start over after the snapshot is taken.
+     */
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+
+    /** Extra holding the number of queries answered from the cache (long) */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    /** Extra holding the number of queries that missed the cache (long) */
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    /** Extra holding the number of rows held by the cache (int) */
+    public static final String EXTRA_CACHE_ROWS = "cache_rows";
+
+    /** Extra holding the number of rows the cache may hold (int) */
+    public static final String EXTRA_CACHE_MAX_ROWS = "cache_max_rows";
+
+    /** Extra asking for counters to be reset after they are read (boolean) */
+    public static final String EXTRA_RESET = "reset";
+
+    /**
+     * Provider method that inserts one chunk of an import in a single transaction and, in the
+     * same transaction, records how far into its source the import got. The source is named by
+     * the arg of the call, the rows go in {@link #EXTRA_ROWS} as ContentValues validated like
+     * any inserted item, and the position reached after them in {@link #EXTRA_POSITION}.
+     * The number of rows inserted comes back in {@link #EXTRA_ACCEPTED} and the number of rows
+     * refused by validation or constraints in {@link #EXTRA_REJECTED}. A bulk insert into
+     * {@link ItemEntry#CONTENT_URI} refuses rows the same way, but can only return the number
+     * of rows inserted, so callers that need to report refused rows use this method.
+     */
+    public static final String METHOD_IMPORT_CHUNK = "import_chunk";
+
+    /**
+     * Provider method that returns, in {@link #EXTRA_POSITION}, the position recorded by the last
+     * committed chunk of an unfinished import from the source named by the arg, or 0 if none.
+     */
+    public static final String METHOD_GET_IMPORT_POSITION = "get_import_position";
+
+    /**
+     * Provider method that forgets the position of the import from the source named by the arg,
+     * once every chunk of it has been committed.
+     */
+    public static final String METHOD_FINISH_IMPORT = "finish_import";
+
+    /** Extra holding the rows of an import chunk (ArrayList of ContentValues) */
+    public static final String EXTRA_ROWS = "rows";
+
+    /** Extra holding a position in an import source (long) */
+    public static final String EXTRA_POSITION = "position";
+
+    /**
+     * Provider method that returns counters and latency histograms of the provider, collected
+     * since it started or since they were last reset with {@link #EXTRA_RESET}.
+     *
+     * The result holds the number of change notifications sent in {@link #EXTRA_NOTIFICATIONS},
+     * and a bundle for every kind of operation seen so far under its name, such as
+     * "query items/#", "update items", "batch" or "call adjust_amounts"; calls of methods the
+     * provider doesn't know are counted together under "call unknown". Each of these holds
+     * {@link #EXTRA_METRIC_COUNT}, {@link #EXTRA_METRIC_ROWS} (rows written; queries don't count
+     * theirs, as that would mean reading their whole result), {@link #EXTRA_METRIC_TOTAL_MICROS},
+     * {@link #EXTRA_METRIC_MAX_MICROS}, {@link #EXTRA_METRIC_P50_MICROS},
+     * {@link #EXTRA_METRIC_P99_MICROS} and {@link #EXTRA_METRIC_HISTOGRAM}. Bucket 0 of the
+     * histogram counts operations under 1 us and bucket i those from 2^(i-1) us up to 2^i us;
+     * the percentiles are the upper bound of the bucket they fall in.
+     */
+    public static final String METHOD_METRICS = "metrics";
+
+    /** Extras of {@link #METHOD_METRICS} */
+    public static final String EXTRA_NOTIFICATIONS = "notifications";
+    public static final String EXTRA_METRIC_COUNT = "count";
+    public static final String EXTRA_METRIC_ROWS = "rows";
+    public static final String EXTRA_METRIC_TOTAL_MICROS = "total_micros";
+    public static final String EXTRA_METRIC_MAX_MICROS = "max_micros";
+    public static final String EXTRA_METRIC_P50_MICROS = "p50_micros";
+    public static final String EXTRA_METRIC_P99_MICROS = "p99_micros";
+    public static final String EXTRA_METRIC_HISTOGRAM = "histogram";
+
+    /**
+     * Provider method that sets the threshold of the slow-query log: queries taking at least
+     * {@link #EXTRA_THRESHOLD_MILLIS} milliseconds are logged. 0 logs every query and a negative
+     * threshold turns the log off. The threshold is 100 ms until set.
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    /** Extra of {@link #METHOD_SET_SLOW_QUERY_THRESHOLD} holding the threshold in ms (long) */
+    public static final String EXTRA_THRESHOLD_MILLIS = "threshold_millis";
+
+    /**
+     * Provider method that returns the most recent slow queries, oldest first, as an ArrayList
+     * of bundles in {@link #EXTRA_SLOW_QUERIES}. Each holds the SQL in {@link #EXTRA_SQL}, its
+     * arguments in {@link #EXTRA_SQL_ARGS}, the time it took in {@link #EXTRA_ELAPSED_MICROS},
+     * the EXPLAIN QUERY PLAN output in {@link #EXTRA_QUERY_PLAN}, one step per line, and when it
+     * ran in {@link #EXTRA_TIMESTAMP}. {@link #EXTRA_RESET} empties the log after it is read.
+     */
+    public static final String METHOD_SLOW_QUERIES = "slow_queries";
+
+    /** Extras of {@link #METHOD_SLOW_QUERIES} */
+    public static final String EXTRA_SLOW_QUERIES = "slow_queries";
+    public static final String EXTRA_SQL = "sql";
+    public static final String EXTRA_SQL_ARGS = "sql_args";
+    public static final String EXTRA_ELAPSED_MICROS = "elapsed_micros";
+    public static final String EXTRA_QUERY_PLAN = "query_plan";
+    public static final String EXTRA_TIMESTAMP = "timestamp";
+
+    /**
+     * Provider method that purges deleted items and gives the space they took back to the file
+     * system. Deleted items older than {@link #EXTRA_PURGE_BEFORE} (milliseconds since the epoch)
+     * are removed in small transactions, freed pages are released with incremental vacuum a few
+     * at a time, and the query planner statistics are refreshed. If
+     * {@link #EXTRA_PURGE_MAX_VERSION} is given, deleted items with a later change version are
+     * kept, so a mirror that hasn't seen their deletion yet still can. Readers and writers only wait
+     * for one small step at a time, except for the final check of the catalog statistics, see
+     * {@link #METHOD_CHECK_STATS}. The result holds the number of items purged in
+     * {@link #EXTRA_PURGED}, the bytes the database file shrank by in
+     * {@link #EXTRA_RECLAIMED_BYTES} and the outcome of the check in {@link #EXTRA_STATS_REBUILT}.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+
+    /** Extras of {@link #METHOD_RUN_MAINTENANCE} */
+    public static final String EXTRA_PURGE_BEFORE = "purge_before";
+    public static final String EXTRA_PURGE_MAX_VERSION = "purge_max_version";
+    public static final String EXTRA_PURGED = "purged";
+    public static final String EXTRA_RECLAIMED_BYTES = "reclaimed_bytes";
+
+    /**
+     * Optional extra of {@link #METHOD_RUN_MAINTENANCE}: stock movements recorded before this
+     * time (milliseconds since the epoch) are folded into per-item snapshots, see
+     * {@link SnapshotEntry}. The result then holds the number of movements folded in
+     * {@link #EXTRA_COMPACTED}.
+     */
+    public static final String EXTRA_COMPACT_BEFORE = "compact_before";
+    public static final String EXTRA_COMPACTED = "compacted";
+
+    /**
+     * Provider method that checks the catalog statistics against the catalog itself and
+     * rebuilds them if they drifted. The result tells in {@link #EXTRA_STATS_REBUILT} whether
+     * they had to be rebuilt. {@link #METHOD_RUN_MAINTENANCE} runs the same check.
+     */
+    public static final String METHOD_CHECK_STATS = "check_stats";
+
+    /** Extra telling whether the statistics had to be rebuilt (boolean) */
+    public static final String EXTRA_STATS_REBUILT = "stats_rebuilt";
+
+    /**
+     * Provider method that resolves scanned codes to items in one round trip. The codes go in
+     * {@link #EXTRA_SKUS} and the result holds, in {@link #EXTRA_IDS}, the _id of the item
+     * holding each code, or {@link #SKU_NOT_FOUND} for codes no item holds.
+     */
+    public static final String METHOD_RESOLVE_SKUS = "resolve_skus";
+
+    /** Extra of {@link #METHOD_RESOLVE_SKUS} holding the codes (String[]) */
+    public static final String EXTRA_SKUS = "skus";
+
+    /** Result of {@link #METHOD_RESOLVE_SKUS} for a code no item holds */
+    public static final long SKU_NOT_FOUND = -1;
+
+    /**
+     * Provider method that values the live stock and buckets it by price, in one pass over the
+     * price index. Takes the bucket width in cents in {@link #EXTRA_BUCKET_CENTS}. The result
+     * holds, for each bucket that has items, in ascending price order:
+     * {@link #EXTRA_BUCKET_STARTS} the lowest price of the bucket, {@link #EXTRA_BUCKET_COUNTS}
+     * the number of items and {@link #EXTRA_BUCKET_VALUES} the value of their stock; and in
+     * {@link #EXTRA_STOCK_VALUE_CENTS} the value of the whole stock.
+     */
+    public static final String METHOD_PRICE_HISTOGRAM = "price_histogram";
+
+    /** Extra holding the width of the price buckets in cents (long) */
+    public static final String EXTRA_BUCKET_CENTS = "bucket_cents";
+
+    /** Extras of the {@link #METHOD_PRICE_HISTOGRAM} result (long[]) */
+    public static final String EXTRA_BUCKET_STARTS = "bucket_starts";
+    public static final String EXTRA_BUCKET_COUNTS = "bucket_counts";
+    public static final String EXTRA_BUCKET_VALUES = "bucket_values";
+
+    /** Extra holding the value of the stock on hand, price times amount, in cents (long) */
+    public static final String EXTRA_STOCK_VALUE_CENTS = "stock_value_cents";
+
+    /** Extra holding the number of rows accepted (int) */
+    public static final String EXTRA_ACCEPTED = "accepted";
+
+    /** Extra holding the number of rows rejected (int) */
+    public static final String EXTRA_REJECTED = "rejected";
+
     /**
      * Inner class that defines constant values for the warehouse database table.
      * Each entry in the table represents a single item.
@@ -45,6 +373,125 @@ public final class ItemContract {
         /** The content URI to access the warehouse data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_ITEMS);
 
+        /**
+         * The content URI to search items by name and brand. The search text is passed in the
+         * {@link #QUERY_PARAMETER_SEARCH} query parameter and every word of it is matched as a
+         * prefix. Text without any letter or digit matches nothing. The results can be paged by
+         * _id with {@link #QUERY_PARAMETER_AFTER_ID}, {@link #QUERY_PARAMETER_UNTIL_ID} and
+         * {@link #QUERY_PARAMETER_LIMIT}, as for {@link #CONTENT_URI}. Unpaged results are ordered
+         * by relevance unless a sort order is given, which sorts every match.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /** Query parameter of {@link #CONTENT_SEARCH_URI} holding the search text */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * The content URI to export items, opened with
+         * {@link ContentResolver#openFileDescriptor}. Rows are streamed through a pipe as they
+         * are read, so any number of items can be exported without holding them in memory.
+         *
+         * The format is chosen with {@link #QUERY_PARAMETER_FORMAT}, CSV by default; CSV exports
+         * start with a header row and can be read back by the import. The exported columns can be
+         * narrowed with {@link #QUERY_PARAMETER_COLUMNS} and the rows with
+         * {@link #QUERY_PARAMETER_SELECTION}, whose "?" are filled in by the repeated
+         * {@link #QUERY_PARAMETER_SELECTION_ARG} parameters in order.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The content URI of the feed of changed items, for mirroring the catalog elsewhere.
+         * It returns the items whose {@link #COLUMN_ITEM_CHANGE_VERSION} is greater than the
+         * {@link #QUERY_PARAMETER_SINCE} query parameter, deleted items included, ordered by
+         * change version. Reading up to {@link #QUERY_PARAMETER_LIMIT} changes at a time and
+         * passing the last version read as the next since walks through every change once,
+         * at a cost that depends on the number of changes rather than the size of the catalog.
+         *
+         * Deleted items are only kept for a while before maintenance purges them; a mirror that
+         * falls further behind has to start over from version 0.
+         */
+        public static final Uri CONTENT_CHANGES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The content URI to look an item up by its {@link #COLUMN_ITEM_SKU}. Append the code as
+         * the last path segment, see {@link #buildSkuUri(String)}.
+         */
+        public static final Uri CONTENT_SKU_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SKU);
+
+        /**
+         * Return the content URI of the item holding the given SKU.
+         */
+        public static Uri buildSkuUri(String sku) {
+            return Uri.withAppendedPath(CONTENT_SKU_URI, sku);
+        }
+
+        /**
+         * The content URI of the live items at or below their {@link #COLUMN_ITEM_REORDER_POINT}.
+         * Reading it costs O(low-stock items), whatever the size of the catalog.
+         */
+        public static final Uri CONTENT_LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * Return the content URI of the stock movements of the item with the given _id, oldest
+         * first. Movements older than the latest compaction are gone, see {@link SnapshotEntry}.
+         */
+        public static Uri buildMovementsUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, id),
+                    PATH_MOVEMENTS);
+        }
+
+        /**
+         * Query parameter of the URI of a single item making an update conditional: the update
+         * only applies if the {@link #COLUMN_ITEM_CHANGE_VERSION} of the item still has this
+         * value, and otherwise updates nothing. See {@link ItemContract#METHOD_UPDATE_ITEM} for
+         * an update that tells a conflict from a missing item.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
+        /** Query parameter of {@link #CONTENT_CHANGES_URI} holding the last version already seen */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /** Query parameters of {@link #CONTENT_EXPORT_URI} */
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+        public static final String QUERY_PARAMETER_COLUMNS = "columns";
+        public static final String QUERY_PARAMETER_SELECTION = "selection";
+        public static final String QUERY_PARAMETER_SELECTION_ARG = "arg";
+
+        /** Export formats for {@link #QUERY_PARAMETER_FORMAT} */
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+
+        /** The MIME types of {@link #CONTENT_EXPORT_URI} */
+        public static final String CONTENT_CSV_TYPE = "text/csv";
+        public static final String CONTENT_JSON_TYPE = "application/json";
+
+        /**
+         * Query parameters for reading {@link #CONTENT_URI} one page at a time. Pages are found
+         * by key instead of by offset, so reading a page costs the same wherever it is in the
+         * catalog.
+         *
+         * Items are ordered by _id, or by name and then _id when {@link #QUERY_PARAMETER_AFTER_NAME}
+         * or {@link #QUERY_PARAMETER_UNTIL_NAME} is given; any sort order passed to the query is
+         * replaced by this one. A page starts after the key of the last item of the previous page
+         * ({@link #QUERY_PARAMETER_AFTER_ID} and, when ordering by name, {@link #QUERY_PARAMETER_AFTER_NAME})
+         * and holds at most {@link #QUERY_PARAMETER_LIMIT} items. The until parameters close a
+         * page at a known last key (inclusive), so it can be reloaded without overlapping the next.
+         * For the first page by name, pass an empty after name and an after id of 0.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+        public static final String QUERY_PARAMETER_AFTER_NAME = "after_name";
+        public static final String QUERY_PARAMETER_UNTIL_ID = "until_id";
+        public static final String QUERY_PARAMETER_UNTIL_NAME = "until_name";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameters of {@link #CONTENT_URI} restricting the items to a range of
+         * {@link #COLUMN_ITEM_PRICE_CENTS}, both bounds inclusive and each optional. The range is
+         * read from the price index, and combines with the paging parameters above.
+         */
+        public static final String QUERY_PARAMETER_MIN_PRICE_CENTS = "min_price_cents";
+        public static final String QUERY_PARAMETER_MAX_PRICE_CENTS = "max_price_cents";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of items.
          */
@@ -60,6 +507,9 @@ public final class ItemContract {
         /** Name of database table for items */
         public final static String TABLE_NAME = "catalog";
 
+        /** Name of the full-text index over item names and brands, kept in sync by triggers */
+        public final static String FTS_TABLE_NAME = "catalog_fts";
+
         /**
          * Unique ID number for the item (only for use in the database table).
          *
@@ -96,12 +546,303 @@ public final class ItemContract {
          * Type: INTEGER
          */
         public final static String COLUMN_ITEM_AMOUNT = "amount";
+
+        /**
+         * Stock keeping unit of the item, such as the code printed in its barcode. Optional, and
+         * unique among the items that have one. Deleting an item frees its code.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_ITEM_SKU = "sku";
+
+        /**
+         * Time the item was deleted, in milliseconds since the epoch, or null for a live item.
+         * Deleting an item only sets this; queries leave deleted items out, and the rows are
+         * purged for good by {@link ItemContract#METHOD_RUN_MAINTENANCE} once old enough.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_DELETED_AT = "deleted_at";
+
+        /**
+         * Version of the last change to the item. Every insert, update and delete gives the item
+         * a version greater than that of any earlier change to the catalog, in commit order.
+         * It also serves as the row version for conditional updates, see
+         * {@link ItemContract#METHOD_UPDATE_ITEM}. Kept by the provider, not meant to be written.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_CHANGE_VERSION = "change_version";
+
+        /**
+         * Time of the last change to the item, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_UPDATED_AT = "updated_at";
+
+        /**
+         * Price of the item in cents, for range queries and stock valuation. Never negative. An
+         * item inserted, or updated, with only a {@link #COLUMN_ITEM_PRICE} tier is priced at the
+         * value of the tier, see {@link #centsForPrice(int)}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_PRICE_CENTS = "price_cents";
+
+        /**
+         * Amount at or below which the item should be reordered. Never negative, 0 by default,
+         * so out of stock items count as low.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_REORDER_POINT = "reorder_point";
+
+        /**
+         * 1 while the item is live and its amount is at or below its reorder point, null
+         * otherwise. Kept up to date by triggers, not meant to be written.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_LOW_STOCK = "low_stock";
+
         /**
          * Possible values for the price of the item.
          */
         public static final int PRICE_LOW = 0;
         public static final int PRICE_HIGH = 1;
         public static final int PRICE_MIDDLE = 2;
+
+        /**
+         * Price in cents that stands for each price tier, for items that were only given a tier.
+         */
+        public static final long PRICE_LOW_CENTS = 10000;
+        public static final long PRICE_MIDDLE_CENTS = 50000;
+        public static final long PRICE_HIGH_CENTS = 200000;
+
+        /**
+         * Return the price in cents that stands for the given price tier.
+         */
+        public static long centsForPrice(int price) {
+            switch (price) {
+                case PRICE_HIGH:
+                    return PRICE_HIGH_CENTS;
+                case PRICE_MIDDLE:
+                    return PRICE_MIDDLE_CENTS;
+                default:
+                    return PRICE_LOW_CENTS;
+            }
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the table recording the progress of
+     * unfinished imports. Each entry records the position reached by the last committed chunk
+     * of the import from one source.
+     */
+    public static final class ImportEntry {
+
+        private ImportEntry() {}
+
+        /** Name of database table for import progress */
+        public final static String TABLE_NAME = "import_progress";
+
+        /**
+         * Identifier of the imported source, such as its URI.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_SOURCE = "source";
+
+        /**
+         * Number of records of the source covered by the committed chunks.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_POSITION = "position";
+    }
+
+    /**
+     * Inner class that defines constant values for the catalog statistics. Each row holds the
+     * totals of the live items in one bucket of one dimension: {@link #DIMENSION_TOTAL} has a
+     * single row for the whole catalog, {@link #DIMENSION_PRICE} a row per price tier. Triggers
+     * keep the rows up to date with every write, so reading them costs the same whatever the
+     * size of the catalog.
+     */
+    public static final class StatsEntry {
+
+        private StatsEntry() {}
+
+        /**
+         * The content URI of the statistics. Changes of the catalog are notified on
+         * {@link ItemEntry#CONTENT_URI}, which the statistics cursor listens to.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(ItemEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the statistics.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_ITEMS + "/" + PATH_STATS;
+
+        /** Name of database table for the statistics */
+        public final static String TABLE_NAME = "catalog_stats";
+
+        /**
+         * Dimension the row belongs to, one of {@link #DIMENSION_TOTAL} or
+         * {@link #DIMENSION_PRICE}.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_DIMENSION = "dimension";
+
+        /**
+         * Bucket of the dimension: 0 for {@link #DIMENSION_TOTAL}, the price tier for
+         * {@link #DIMENSION_PRICE}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BUCKET = "bucket";
+
+        /**
+         * Number of items in the bucket.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEMS = "items";
+
+        /**
+         * Units on hand of the items in the bucket.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNITS = "units";
+
+        /**
+         * Value in cents of the units on hand of the items in the bucket.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VALUE_CENTS = "value_cents";
+
+        /** Possible values of {@link #COLUMN_DIMENSION} */
+        public static final String DIMENSION_TOTAL = "total";
+        public static final String DIMENSION_PRICE = "price";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock movements journal. The provider
+     * appends a movement in the same transaction as every write that changes the amount of an
+     * item; movements are never changed afterwards, only folded into snapshots once old.
+     */
+    public static final class MovementEntry implements BaseColumns {
+
+        private MovementEntry() {}
+
+        /**
+         * The MIME type of the stock movements of an item, see
+         * {@link ItemEntry#buildMovementsUri(long)}.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
+
+        /** Name of database table for stock movements */
+        public final static String TABLE_NAME = "stock_movements";
+
+        /**
+         * _id of the item whose amount changed.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_ID = "item_id";
+
+        /**
+         * Change of the amount, negative when stock left.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELTA = "delta";
+
+        /**
+         * Why the amount changed, one of the REASON values or a reason given with an adjustment.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_REASON = "reason";
+
+        /**
+         * Time of the change, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CREATED_AT = "created_at";
+
+        /** Reasons recorded by the provider */
+        public static final String REASON_RECEIVED = "received";
+        public static final String REASON_EDIT = "edit";
+        public static final String REASON_ADJUSTMENT = "adjustment";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock snapshots. Compaction folds the
+     * old movements of an item into its snapshot, which then holds the amount of the item right
+     * after the last movement folded. Items that predate the journal start with a snapshot of
+     * their amount at that time.
+     */
+    public static final class SnapshotEntry {
+
+        private SnapshotEntry() {}
+
+        /** Name of database table for stock snapshots */
+        public final static String TABLE_NAME = "stock_snapshots";
+
+        /**
+         * _id of the item, one snapshot per item.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ITEM_ID = "item_id";
+
+        /**
+         * Amount of the item at {@link #COLUMN_TAKEN_AT}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_AMOUNT = "amount";
+
+        /**
+         * Time of the snapshot, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TAKEN_AT = "taken_at";
+
+        /**
+         * _id of the last movement folded into the snapshot; later movements follow it.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LAST_MOVEMENT = "last_movement";
+    }
+
+    /**
+     * Inner class that defines constant values for the counter change versions are taken from.
+     * The table holds a single row; every change of an item takes the next value, so versions
+     * only ever grow, even after the item holding the highest one is purged.
+     */
+    public static final class ChangeSequenceEntry {
+
+        private ChangeSequenceEntry() {}
+
+        /** Name of database table for the change version counter */
+        public final static String TABLE_NAME = "change_sequence";
+
+        /**
+         * Last change version handed out.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VERSION = "version";
     }
 
 
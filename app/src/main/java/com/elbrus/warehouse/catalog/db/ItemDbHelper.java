@@ -1,8 +1,10 @@
 package com.elbrus.warehouse.catalog.db;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import com.elbrus.warehouse.catalog.db.ItemContract.*;
 /**
  * Database helper for Warehouse app. Manages database creation and version management.
@@ -17,7 +19,23 @@ public class ItemDbHelper extends SQLiteOpenHelper{
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 13;
+
+    /**
+     * Number of WAL pages after which a commit checkpoints the log back into the database.
+     * Larger than SQLite's default of 1000 so bulk imports checkpoint less often.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 4000;
+
+    /** SQL expression for the current time in milliseconds since the epoch */
+    private static final String NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /** Name of the index on the price of items, which the stock valuation reads on its own */
+    static final String PRICE_INDEX = "catalog_price_idx";
+
+    /** Size, in bytes, the WAL file is truncated back to after a checkpoint */
+    private static final long WAL_SIZE_LIMIT_BYTES = 4 * 1024 * 1024;
 
     /**
      * Constructs a new instance of {@link ItemDbHelper}.
@@ -25,7 +43,66 @@ public class ItemDbHelper extends SQLiteOpenHelper{
      * @param context of the app
      */
     public ItemDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link ItemDbHelper} backed by the given database file.
+     *
+     * @param context of the app
+     * @param name    of the database file, or null for an in-memory database
+     */
+    ItemDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // Use write-ahead logging: readers keep reading the last committed data while a write
+        // is running, and the framework gives each reading thread a connection of its own
+        // next to the single writer connection.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database is opened, before it is created or upgraded. Only
+     * called from API 16 on.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Incremental vacuum only takes effect when it is switched on before the file is laid
+        // out. A new database holds nothing but the framework's locale table yet, so the VACUUM
+        // that lays it out again is instant. Existing databases, and new ones on API 15, are
+        // switched over once by maintenance instead.
+        if (!db.isReadOnly() && db.getVersion() == 0) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+    }
+
+    /**
+     * This is called every time the database is opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+
+        // setWriteAheadLoggingEnabled() needs API 16, older devices turn WAL on here
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        // In WAL mode a commit only has to reach the log, not the disk; the database stays
+        // consistent after a crash and at most the last commits are lost on power failure.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+
+        // These pragmas report their new value, so they have to go through a query
+        DatabaseUtils.longForQuery(db,
+                "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(db,
+                "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
     }
 
 
@@ -45,13 +122,388 @@ public class ItemDbHelper extends SQLiteOpenHelper{
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_ITEMS_TABLE);
+
+        // The statement above is the version 1 schema, bring it up to date with the
+        // same migrations that existing installs go through.
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Every schema version has its own
+     * step, and the steps are applied in order starting from the installed version.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+        if (oldVersion < 8) {
+            upgradeToVersion8(db);
+        }
+        if (oldVersion < 9) {
+            upgradeToVersion9(db);
+        }
+        if (oldVersion < 10) {
+            upgradeToVersion10(db);
+        }
+        if (oldVersion < 11) {
+            upgradeToVersion11(db);
+        }
+        if (oldVersion < 12) {
+            upgradeToVersion12(db);
+        }
+        if (oldVersion < 13) {
+            upgradeToVersion13(db);
+        }
+    }
+
+    /**
+     * Version 2 adds secondary indexes, so lookups and sorts by name or brand no longer have to
+     * scan the whole catalog table.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        // Lookups by brand
+        db.execSQL("CREATE INDEX IF NOT EXISTS catalog_brand_idx ON "
+                + ItemEntry.TABLE_NAME + " (" + ItemEntry.COLUMN_ITEM_BRAND + ");");
+
+        // Covering index for the _id, name, brand projection of the catalog list. The _id is the
+        // rowid, which every index entry already carries, so the list can be read (and sorted
+        // by name) from this index alone without touching the table. Name leads, so it also
+        // serves lookups by name.
+        db.execSQL("CREATE INDEX IF NOT EXISTS catalog_list_idx ON "
+                + ItemEntry.TABLE_NAME + " (" + ItemEntry.COLUMN_ITEM_NAME + ", "
+                + ItemEntry.COLUMN_ITEM_BRAND + ");");
+    }
+
+    /**
+     * Version 3 adds an FTS4 index over item names and brands for the search URI. The index
+     * keeps its own copy of both columns under the item's _id as docid, and triggers on the
+     * catalog table keep it up to date.
+     */
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + ItemEntry.FTS_TABLE_NAME + " USING fts4("
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_BRAND + ");");
+
+        // Index the items that already exist
+        db.execSQL("INSERT INTO " + ItemEntry.FTS_TABLE_NAME + " (docid, "
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_BRAND + ") SELECT "
+                + ItemEntry._ID + ", " + ItemEntry.COLUMN_ITEM_NAME + ", "
+                + ItemEntry.COLUMN_ITEM_BRAND + " FROM " + ItemEntry.TABLE_NAME + ";");
+
+        db.execSQL("CREATE TRIGGER catalog_fts_insert AFTER INSERT ON " + ItemEntry.TABLE_NAME
+                + " BEGIN INSERT INTO " + ItemEntry.FTS_TABLE_NAME + " (docid, "
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_BRAND + ") VALUES (new."
+                + ItemEntry._ID + ", new." + ItemEntry.COLUMN_ITEM_NAME + ", new."
+                + ItemEntry.COLUMN_ITEM_BRAND + "); END;");
+
+        db.execSQL("CREATE TRIGGER catalog_fts_update AFTER UPDATE OF "
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_BRAND + " ON "
+                + ItemEntry.TABLE_NAME + " BEGIN UPDATE " + ItemEntry.FTS_TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_NAME + " = new." + ItemEntry.COLUMN_ITEM_NAME + ", "
+                + ItemEntry.COLUMN_ITEM_BRAND + " = new." + ItemEntry.COLUMN_ITEM_BRAND
+                + " WHERE docid = old." + ItemEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER catalog_fts_delete AFTER DELETE ON " + ItemEntry.TABLE_NAME
+                + " BEGIN DELETE FROM " + ItemEntry.FTS_TABLE_NAME
+                + " WHERE docid = old." + ItemEntry._ID + "; END;");
+    }
+
+    /**
+     * Version 4 adds the table recording how far unfinished imports got, so they can resume.
+     */
+    private void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ImportEntry.TABLE_NAME + " ("
+                + ImportEntry.COLUMN_SOURCE + " TEXT PRIMARY KEY, "
+                + ImportEntry.COLUMN_POSITION + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Version 5 turns deletes into tombstones: deleting an item sets its deleted_at time, and
+     * maintenance purges old tombstones later. The index lets maintenance find them without
+     * scanning the catalog.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_DELETED_AT + " INTEGER;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS catalog_deleted_idx ON "
+                + ItemEntry.TABLE_NAME + " (" + ItemEntry.COLUMN_ITEM_DELETED_AT + ");");
+    }
+
+    /**
+     * Version 6 adds change tracking for the change feed. Triggers stamp every inserted or
+     * changed row with the next change version and the current time. They run inside the
+     * writing transaction, while it holds the database's single write lock, so versions are
+     * handed out in commit order whichever path the write took.
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_UPDATED_AT + " INTEGER;");
+
+        // Existing items count as changed once, in _id order
+        db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " = " + ItemEntry._ID + ", "
+                + ItemEntry.COLUMN_ITEM_UPDATED_AT + " = " + NOW_MILLIS + ";");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS catalog_change_idx ON "
+                + ItemEntry.TABLE_NAME + " (" + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + ");");
+
+        String stamp = " BEGIN UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " = (SELECT MAX("
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + ") + 1 FROM " + ItemEntry.TABLE_NAME
+                + "), " + ItemEntry.COLUMN_ITEM_UPDATED_AT + " = " + NOW_MILLIS
+                + " WHERE " + ItemEntry._ID + " = new." + ItemEntry._ID + "; END;";
+
+        db.execSQL("CREATE TRIGGER catalog_version_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME + stamp);
+
+        // The stamp itself changes the version, which the WHEN clause lets through
+        db.execSQL("CREATE TRIGGER catalog_version_update AFTER UPDATE ON "
+                + ItemEntry.TABLE_NAME + " WHEN new." + ItemEntry.COLUMN_ITEM_CHANGE_VERSION
+                + " = old." + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + stamp);
+    }
+
+    /**
+     * Version 7 adds the SKU of items. The unique index both rejects a second item with the same
+     * code and resolves a scanned code to its item with a single seek; items without a code
+     * store NULL, which the index doesn't count as a duplicate.
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_SKU + " TEXT;");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS catalog_sku_idx ON "
+                + ItemEntry.TABLE_NAME + " (" + ItemEntry.COLUMN_ITEM_SKU + ");");
+    }
+
+    /**
+     * Version 8 adds real prices in cents. Existing items are priced at the value of their
+     * tier. The index leads with the price for range queries, and also holds deleted_at and
+     * amount, so valuing the stock reads the index alone.
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_PRICE_CENTS + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_PRICE_CENTS + " = CASE " + ItemEntry.COLUMN_ITEM_PRICE
+                + " WHEN " + ItemEntry.PRICE_HIGH + " THEN " + ItemEntry.PRICE_HIGH_CENTS
+                + " WHEN " + ItemEntry.PRICE_MIDDLE + " THEN " + ItemEntry.PRICE_MIDDLE_CENTS
+                + " ELSE " + ItemEntry.PRICE_LOW_CENTS + " END;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + PRICE_INDEX + " ON " + ItemEntry.TABLE_NAME
+                + " (" + ItemEntry.COLUMN_ITEM_PRICE_CENTS + ", "
+                + ItemEntry.COLUMN_ITEM_DELETED_AT + ", " + ItemEntry.COLUMN_ITEM_AMOUNT + ");");
+    }
+
+    /**
+     * Version 9 adds the catalog statistics, kept up to date by triggers. Each trigger takes the
+     * old row out of its buckets and adds the new one, counting live items only, so tombstoning
+     * an item takes it out and purging the tombstone later changes nothing.
+     */
+    private void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " ("
+                + StatsEntry.COLUMN_DIMENSION + " TEXT NOT NULL, "
+                + StatsEntry.COLUMN_BUCKET + " INTEGER NOT NULL, "
+                + StatsEntry.COLUMN_ITEMS + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                + StatsEntry.COLUMN_VALUE_CENTS + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + StatsEntry.COLUMN_DIMENSION + ", "
+                + StatsEntry.COLUMN_BUCKET + "));");
+
+        db.execSQL("CREATE TRIGGER catalog_stats_insert AFTER INSERT ON " + ItemEntry.TABLE_NAME
+                + " BEGIN " + addToStats("new", "+") + " END;");
+
+        // Only the columns the statistics depend on fire the trigger, so the version stamp
+        // written after every change doesn't
+        db.execSQL("CREATE TRIGGER catalog_stats_update AFTER UPDATE OF "
+                + ItemEntry.COLUMN_ITEM_PRICE + ", " + ItemEntry.COLUMN_ITEM_PRICE_CENTS + ", "
+                + ItemEntry.COLUMN_ITEM_AMOUNT + ", " + ItemEntry.COLUMN_ITEM_DELETED_AT
+                + " ON " + ItemEntry.TABLE_NAME
+                + " BEGIN " + addToStats("old", "-") + " " + addToStats("new", "+") + " END;");
+
+        db.execSQL("CREATE TRIGGER catalog_stats_delete AFTER DELETE ON " + ItemEntry.TABLE_NAME
+                + " BEGIN " + addToStats("old", "-") + " END;");
+
+        rebuildStats(db);
+    }
+
+    /**
+     * Return the trigger statements that add the given row of the catalog ("new" or "old") to
+     * its statistics buckets with the given sign, if the row is a live item.
+     */
+    private static String addToStats(String row, String sign) {
+        String live = row + "." + ItemEntry.COLUMN_ITEM_DELETED_AT + " IS NULL";
+        return "INSERT OR IGNORE INTO " + StatsEntry.TABLE_NAME + " ("
+                + StatsEntry.COLUMN_DIMENSION + ", " + StatsEntry.COLUMN_BUCKET + ") SELECT '"
+                + StatsEntry.DIMENSION_PRICE + "', " + row + "." + ItemEntry.COLUMN_ITEM_PRICE
+                + " WHERE " + live + "; "
+                + "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_ITEMS + " = " + StatsEntry.COLUMN_ITEMS + " " + sign + " 1, "
+                + StatsEntry.COLUMN_UNITS + " = " + StatsEntry.COLUMN_UNITS + " " + sign + " "
+                + row + "." + ItemEntry.COLUMN_ITEM_AMOUNT + ", "
+                + StatsEntry.COLUMN_VALUE_CENTS + " = " + StatsEntry.COLUMN_VALUE_CENTS + " "
+                + sign + " " + row + "." + ItemEntry.COLUMN_ITEM_PRICE_CENTS + " * "
+                + row + "." + ItemEntry.COLUMN_ITEM_AMOUNT
+                + " WHERE " + live + " AND ((" + StatsEntry.COLUMN_DIMENSION + " = '"
+                + StatsEntry.DIMENSION_TOTAL + "' AND " + StatsEntry.COLUMN_BUCKET + " = 0) OR ("
+                + StatsEntry.COLUMN_DIMENSION + " = '" + StatsEntry.DIMENSION_PRICE + "' AND "
+                + StatsEntry.COLUMN_BUCKET + " = " + row + "." + ItemEntry.COLUMN_ITEM_PRICE
+                + "));";
+    }
+
+    /**
+     * Version 10 adds reorder points and the low-stock flag. The Android versions the app
+     * supports predate partial and expression indexes, so triggers keep a flag that is only set
+     * on live items at or below their reorder point, and a plain index on the flag lets a query
+     * seek straight to those items. The triggers only write the flag when it actually changes.
+     */
+    private void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_REORDER_POINT + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_LOW_STOCK + " INTEGER;");
+
+        // Items already low count as changed once
+        db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET " + ItemEntry.COLUMN_ITEM_LOW_STOCK
+                + " = 1 WHERE " + lowStock("") + " IS NOT NULL;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS catalog_low_stock_idx ON "
+                + ItemEntry.TABLE_NAME + " (" + ItemEntry.COLUMN_ITEM_LOW_STOCK + ");");
+
+        String flag = " BEGIN UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_LOW_STOCK + " = " + lowStock("new.")
+                + " WHERE " + ItemEntry._ID + " = new." + ItemEntry._ID + "; END;";
+        String changed = " WHEN new." + ItemEntry.COLUMN_ITEM_LOW_STOCK + " IS NOT "
+                + lowStock("new.");
+
+        db.execSQL("CREATE TRIGGER catalog_low_stock_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME + changed + flag);
+        db.execSQL("CREATE TRIGGER catalog_low_stock_update AFTER UPDATE OF "
+                + ItemEntry.COLUMN_ITEM_AMOUNT + ", " + ItemEntry.COLUMN_ITEM_REORDER_POINT + ", "
+                + ItemEntry.COLUMN_ITEM_DELETED_AT + " ON " + ItemEntry.TABLE_NAME + changed + flag);
+    }
+
+    /**
+     * Version 11 adds the stock movements journal and the snapshots it is compacted into.
+     * Existing items start with a snapshot of their current amount, so the amount at any later
+     * time is that snapshot plus the movements that follow it.
+     */
+    private void upgradeToVersion11(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MovementEntry.TABLE_NAME + " ("
+                + MovementEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + MovementEntry.COLUMN_ITEM_ID + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_REASON + " TEXT, "
+                + MovementEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL);");
+
+        // The tail of an item is found through this index, which also holds the _id
+        db.execSQL("CREATE INDEX IF NOT EXISTS stock_movements_item_idx ON "
+                + MovementEntry.TABLE_NAME + " (" + MovementEntry.COLUMN_ITEM_ID + ", "
+                + MovementEntry.COLUMN_CREATED_AT + ");");
+
+        db.execSQL("CREATE TABLE " + SnapshotEntry.TABLE_NAME + " ("
+                + SnapshotEntry.COLUMN_ITEM_ID + " INTEGER PRIMARY KEY, "
+                + SnapshotEntry.COLUMN_AMOUNT + " INTEGER NOT NULL, "
+                + SnapshotEntry.COLUMN_TAKEN_AT + " INTEGER NOT NULL, "
+                + SnapshotEntry.COLUMN_LAST_MOVEMENT + " INTEGER NOT NULL);");
+
+        db.execSQL("INSERT INTO " + SnapshotEntry.TABLE_NAME + " ("
+                + SnapshotEntry.COLUMN_ITEM_ID + ", " + SnapshotEntry.COLUMN_AMOUNT + ", "
+                + SnapshotEntry.COLUMN_TAKEN_AT + ", " + SnapshotEntry.COLUMN_LAST_MOVEMENT
+                + ") SELECT " + ItemEntry._ID + ", " + ItemEntry.COLUMN_ITEM_AMOUNT + ", "
+                + NOW_MILLIS + ", 0 FROM " + ItemEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Version 12 takes change versions from a counter of their own. Taking the highest version
+     * in the catalog plus one went back whenever maintenance purged the tombstone holding the
+     * highest version, and handed out again versions the sync client had already pushed past.
+     */
+    private void upgradeToVersion12(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ChangeSequenceEntry.TABLE_NAME + " ("
+                + ChangeSequenceEntry.COLUMN_VERSION + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + ChangeSequenceEntry.TABLE_NAME + " ("
+                + ChangeSequenceEntry.COLUMN_VERSION + ") SELECT IFNULL(MAX("
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + "), 0) FROM " + ItemEntry.TABLE_NAME + ";");
+
+        db.execSQL("DROP TRIGGER IF EXISTS catalog_version_insert;");
+        db.execSQL("DROP TRIGGER IF EXISTS catalog_version_update;");
+
+        String stamp = " BEGIN UPDATE " + ChangeSequenceEntry.TABLE_NAME + " SET "
+                + ChangeSequenceEntry.COLUMN_VERSION + " = " + ChangeSequenceEntry.COLUMN_VERSION
+                + " + 1; UPDATE " + ItemEntry.TABLE_NAME + " SET "
+                + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " = (SELECT "
+                + ChangeSequenceEntry.COLUMN_VERSION + " FROM " + ChangeSequenceEntry.TABLE_NAME
+                + "), " + ItemEntry.COLUMN_ITEM_UPDATED_AT + " = " + NOW_MILLIS
+                + " WHERE " + ItemEntry._ID + " = new." + ItemEntry._ID + "; END;";
+
+        db.execSQL("CREATE TRIGGER catalog_version_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME + stamp);
+
+        // The stamp itself changes the version, which the WHEN clause lets through
+        db.execSQL("CREATE TRIGGER catalog_version_update AFTER UPDATE ON "
+                + ItemEntry.TABLE_NAME + " WHEN new." + ItemEntry.COLUMN_ITEM_CHANGE_VERSION
+                + " = old." + ItemEntry.COLUMN_ITEM_CHANGE_VERSION + stamp);
+    }
+
+    /**
+     * Version 13 rebuilds the list index for the live filter that version 5 added to every
+     * catalog query. Without deleted_at in it, the index no longer covered the list, and the
+     * planner could as well take catalog_deleted_idx and sort every live item by name. The
+     * index now leads with deleted_at, so the live items are one range of it, ordered by name
+     * and then _id as the pages by name are; brand comes last to cover the list projection.
+     */
+    private void upgradeToVersion13(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS catalog_list_idx;");
+        db.execSQL("CREATE INDEX catalog_list_idx ON " + ItemEntry.TABLE_NAME + " ("
+                + ItemEntry.COLUMN_ITEM_DELETED_AT + ", " + ItemEntry.COLUMN_ITEM_NAME + ", "
+                + ItemEntry._ID + ", " + ItemEntry.COLUMN_ITEM_BRAND + ");");
+    }
+
+    /**
+     * Return the SQL expression for the low-stock flag of the row with the given prefix.
+     */
+    private static String lowStock(String row) {
+        return "(CASE WHEN " + row + ItemEntry.COLUMN_ITEM_DELETED_AT + " IS NULL AND "
+                + row + ItemEntry.COLUMN_ITEM_AMOUNT + " <= "
+                + row + ItemEntry.COLUMN_ITEM_REORDER_POINT + " THEN 1 END)";
+    }
+
+    /**
+     * Query computing the statistics from the catalog itself, with the columns of the
+     * statistics table. The total row is always there, even for an empty catalog.
+     */
+    static final String STATS_FROM_CATALOG = "SELECT '" + StatsEntry.DIMENSION_TOTAL + "', 0, "
+            + "COUNT(*), IFNULL(SUM(" + ItemEntry.COLUMN_ITEM_AMOUNT + "), 0), "
+            + "IFNULL(SUM(" + ItemEntry.COLUMN_ITEM_PRICE_CENTS + " * "
+            + ItemEntry.COLUMN_ITEM_AMOUNT + "), 0) FROM " + ItemEntry.TABLE_NAME
+            + " WHERE " + ItemEntry.COLUMN_ITEM_DELETED_AT + " IS NULL"
+            + " UNION ALL SELECT '" + StatsEntry.DIMENSION_PRICE + "', "
+            + ItemEntry.COLUMN_ITEM_PRICE + ", COUNT(*), SUM(" + ItemEntry.COLUMN_ITEM_AMOUNT
+            + "), SUM(" + ItemEntry.COLUMN_ITEM_PRICE_CENTS + " * " + ItemEntry.COLUMN_ITEM_AMOUNT
+            + ") FROM " + ItemEntry.TABLE_NAME
+            + " WHERE " + ItemEntry.COLUMN_ITEM_DELETED_AT + " IS NULL"
+            + " GROUP BY " + ItemEntry.COLUMN_ITEM_PRICE;
+
+    /**
+     * Recompute the statistics from the catalog. Takes a full scan of the catalog, so it is
+     * only for migrations and for repairing statistics that drifted.
+     */
+    static void rebuildStats(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + StatsEntry.TABLE_NAME);
+        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " " + STATS_FROM_CATALOG);
     }
 }
@@ -0,0 +1,312 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streams items from a CSV source into the catalog.
+ *
+ * The source is read one record at a time, so its size doesn't matter. The first record is a
+ * header naming the columns; the name, brand, price, price_cents, amount, reorder_point and
+ * sku columns are recognised in any order and other columns are ignored. Rows are validated by
+ * {@link ItemProvider} with the same rules as a single insert and committed in chunks of
+ * {@link #CHUNK_SIZE}, each in its own transaction together with the position reached in the
+ * source. An import that was cut short therefore resumes after its last committed chunk when it
+ * is run again for the same source.
+ */
+public final class ItemImporter {
+
+    /** Rows committed per transaction */
+    public static final int CHUNK_SIZE = 1000;
+
+    /** Size of the buffer the source is read through, in chars */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Listener for the progress of an import, called on the importing thread after each chunk.
+     */
+    public interface ProgressListener {
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Progress of an import.
+     */
+    public static final class Progress {
+        /** Records of the source handled so far, including those of earlier runs */
+        public long records;
+        /** Rows inserted by this run */
+        public long accepted;
+        /** Rows rejected by this run, either unreadable or refused by the provider */
+        public long rejected;
+        /** Chars of the source read by this run */
+        public long chars;
+        /** Time spent by this run, in milliseconds */
+        public long elapsedMillis;
+
+        /** Return the number of rows handled per second by this run */
+        public double rowsPerSecond() {
+            return elapsedMillis == 0 ? 0 : (accepted + rejected) * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d records, %d accepted, %d rejected, %.0f rows/s",
+                    records, accepted, rejected, rowsPerSecond());
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    /**
+     * Constructs a new {@link ItemImporter}.
+     *
+     * @param resolver resolver the chunks are committed through
+     */
+    public ItemImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Import the items of the given source, resuming after the last chunk committed by an
+     * earlier run for the same source, if any. The reader is not closed.
+     *
+     * @param source   identifier of the source, such as its URI, under which progress is kept
+     * @param listener listener for the progress of the import, or null
+     * @return the final progress of the import
+     */
+    public Progress importCsv(String source, Reader reader, ProgressListener listener)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        CsvReader csv = new CsvReader(new BufferedReader(reader, BUFFER_SIZE));
+        Progress progress = new Progress();
+
+        List<String> header = csv.readRecord();
+        if (header == null) {
+            finish(source);
+            return progress;
+        }
+        int nameColumn = indexOf(header, ItemEntry.COLUMN_ITEM_NAME);
+        int brandColumn = indexOf(header, ItemEntry.COLUMN_ITEM_BRAND);
+        int priceColumn = indexOf(header, ItemEntry.COLUMN_ITEM_PRICE);
+        int amountColumn = indexOf(header, ItemEntry.COLUMN_ITEM_AMOUNT);
+        int skuColumn = indexOf(header, ItemEntry.COLUMN_ITEM_SKU);
+        int priceCentsColumn = indexOf(header, ItemEntry.COLUMN_ITEM_PRICE_CENTS);
+        int reorderPointColumn = indexOf(header, ItemEntry.COLUMN_ITEM_REORDER_POINT);
+        if (nameColumn < 0 || priceColumn < 0) {
+            throw new IOException("The header must name the " + ItemEntry.COLUMN_ITEM_NAME
+                    + " and " + ItemEntry.COLUMN_ITEM_PRICE + " columns: " + header);
+        }
+
+        // Skip the records committed by an earlier run
+        Bundle extras = mResolver.call(ItemEntry.CONTENT_URI,
+                ItemContract.METHOD_GET_IMPORT_POSITION, source, null);
+        long resumeAt = extras.getLong(ItemContract.EXTRA_POSITION);
+        while (progress.records < resumeAt && csv.readRecord() != null) {
+            progress.records++;
+        }
+
+        ArrayList<ContentValues> chunk = new ArrayList<>(CHUNK_SIZE);
+        List<String> record;
+        while ((record = csv.readRecord()) != null) {
+            progress.records++;
+
+            ContentValues values = new ContentValues();
+            try {
+                values.put(ItemEntry.COLUMN_ITEM_NAME, field(record, nameColumn));
+                String brand = field(record, brandColumn);
+                if (!TextUtils.isEmpty(brand)) {
+                    values.put(ItemEntry.COLUMN_ITEM_BRAND, brand);
+                }
+                values.put(ItemEntry.COLUMN_ITEM_PRICE, parseInt(field(record, priceColumn)));
+                String priceCents = field(record, priceCentsColumn);
+                if (!TextUtils.isEmpty(priceCents)) {
+                    values.put(ItemEntry.COLUMN_ITEM_PRICE_CENTS, Long.parseLong(priceCents));
+                }
+                String amount = field(record, amountColumn);
+                if (!TextUtils.isEmpty(amount)) {
+                    values.put(ItemEntry.COLUMN_ITEM_AMOUNT, parseInt(amount));
+                }
+                String reorderPoint = field(record, reorderPointColumn);
+                if (!TextUtils.isEmpty(reorderPoint)) {
+                    values.put(ItemEntry.COLUMN_ITEM_REORDER_POINT, parseInt(reorderPoint));
+                }
+                String sku = field(record, skuColumn);
+                if (!TextUtils.isEmpty(sku)) {
+                    values.put(ItemEntry.COLUMN_ITEM_SKU, sku);
+                }
+                chunk.add(values);
+            } catch (NumberFormatException e) {
+                progress.rejected++;
+            }
+
+            if (chunk.size() == CHUNK_SIZE) {
+                commit(source, chunk, progress, csv, start, listener);
+            }
+        }
+
+        // Commit the last partial chunk even if it is empty, so the position covers every record
+        commit(source, chunk, progress, csv, start, listener);
+        finish(source);
+        return progress;
+    }
+
+    /**
+     * Commit the given chunk with the position reached, update the progress and clear the chunk.
+     */
+    private void commit(String source, ArrayList<ContentValues> chunk, Progress progress,
+                        CsvReader csv, long start, ProgressListener listener) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(ItemContract.EXTRA_ROWS, chunk);
+        extras.putLong(ItemContract.EXTRA_POSITION, progress.records);
+        Bundle result = mResolver.call(ItemEntry.CONTENT_URI,
+                ItemContract.METHOD_IMPORT_CHUNK, source, extras);
+
+        progress.accepted += result.getInt(ItemContract.EXTRA_ACCEPTED);
+        progress.rejected += result.getInt(ItemContract.EXTRA_REJECTED);
+        progress.chars = csv.charsRead();
+        progress.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        chunk.clear();
+
+        if (listener != null) {
+            listener.onProgress(progress);
+        }
+    }
+
+    /**
+     * Forget the position of the import, every record of the source has been committed.
+     */
+    private void finish(String source) {
+        mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_FINISH_IMPORT, source, null);
+    }
+
+    private static int indexOf(List<String> header, String column) {
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).trim().equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the trimmed value of the given column, or null if the record doesn't have it.
+     */
+    private static String field(List<String> record, int column) {
+        if (column < 0 || column >= record.size()) {
+            return null;
+        }
+        return record.get(column).trim();
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            throw new NumberFormatException("Missing value");
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Minimal RFC 4180 reader: fields are separated by commas, may be quoted with double quotes,
+     * and quoted fields may contain commas, doubled quotes and line breaks.
+     */
+    static final class CsvReader {
+        private final Reader mReader;
+        private final StringBuilder mField = new StringBuilder();
+        private long mChars;
+
+        /** Char read ahead after a carriage return, or -2 if none */
+        private int mPushedBack = -2;
+
+        CsvReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /** Return the number of chars read so far */
+        long charsRead() {
+            return mChars;
+        }
+
+        /**
+         * Return the fields of the next non-empty record, or null at the end of the source.
+         */
+        List<String> readRecord() throws IOException {
+            List<String> record = new ArrayList<>();
+            boolean quoted = false;
+            boolean any = false;
+            mField.setLength(0);
+
+            int c;
+            while ((c = read()) != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        int next = read();
+                        if (next == '"') {
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                            unread(next);
+                        }
+                    } else {
+                        mField.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                    any = true;
+                } else if (c == ',') {
+                    record.add(mField.toString());
+                    mField.setLength(0);
+                    any = true;
+                } else if (c == '\r' || c == '\n') {
+                    if (c == '\r') {
+                        int next = read();
+                        if (next != '\n') {
+                            unread(next);
+                        }
+                    }
+                    if (any || mField.length() > 0) {
+                        break;
+                    }
+                } else {
+                    mField.append((char) c);
+                    any = true;
+                }
+            }
+
+            if (c == -1 && !any && mField.length() == 0) {
+                return null;
+            }
+            record.add(mField.toString());
+            return record;
+        }
+
+        private int read() throws IOException {
+            if (mPushedBack != -2) {
+                int c = mPushedBack;
+                mPushedBack = -2;
+                return c;
+            }
+            int c = mReader.read();
+            if (c != -1) {
+                mChars++;
+            }
+            return c;
+        }
+
+        private void unread(int c) {
+            mPushedBack = c;
+        }
+    }
+}
@@ -1,14 +1,49 @@
 package com.elbrus.warehouse.catalog.db;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.elbrus.warehouse.catalog.LowStockAlertService;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
 public class ItemProvider extends ContentProvider {
 
     /** Tag for the log messages */
@@ -20,6 +55,52 @@ public class ItemProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single item in the catalog table */
     private static final int CATALOG_ID = 101;
 
+    /** URI matcher code for the content URI for a full-text search of the catalog table */
+    private static final int CATALOG_SEARCH = 102;
+
+    /** URI matcher code for the content URI for exporting the catalog table as a file */
+    private static final int CATALOG_EXPORT = 103;
+
+    /** URI matcher code for the content URI for the items changed since a given version */
+    private static final int CATALOG_CHANGES = 104;
+
+    /** URI matcher code for the content URI for the item with a given SKU */
+    private static final int CATALOG_SKU = 105;
+
+    /** URI matcher code for the content URI for the catalog statistics */
+    private static final int CATALOG_STATS = 106;
+
+    /** URI matcher code for the content URI for the items at or below their reorder point */
+    private static final int CATALOG_LOW_STOCK = 107;
+
+    /** URI matcher code for the content URI for the stock movements of a single item */
+    private static final int CATALOG_ID_MOVEMENTS = 108;
+
+    /** Columns that can be exported, in the order of a full export */
+    private static final String[] EXPORT_COLUMNS = {
+            ItemContract.ItemEntry._ID,
+            ItemContract.ItemEntry.COLUMN_ITEM_SKU,
+            ItemContract.ItemEntry.COLUMN_ITEM_NAME,
+            ItemContract.ItemEntry.COLUMN_ITEM_BRAND,
+            ItemContract.ItemEntry.COLUMN_ITEM_PRICE,
+            ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS,
+            ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT,
+            ItemContract.ItemEntry.COLUMN_ITEM_REORDER_POINT,
+            ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION,
+            ItemContract.ItemEntry.COLUMN_ITEM_UPDATED_AT };
+
+    /** Rows read per query of an export */
+    private static final int EXPORT_CHUNK_SIZE = 1000;
+
+    /** Most codes looked up per query, within SQLite's default limit of 999 bound arguments */
+    private static final int SKU_CHUNK_SIZE = 999;
+
+    /**
+     * Largest number of single item URIs notified separately for one batch of changes. Beyond
+     * this, one notification for the whole catalog is sent instead.
+     */
+    private static final int MAX_ITEM_NOTIFICATIONS = 32;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -45,11 +126,117 @@ public class ItemProvider extends ContentProvider {
         // For example, "content://com.elbrus.warehouse.catalog/catalog/3" matches, but
         // "content://com.elbrus.warehouse.catalog/catalog" (without a number at the end) doesn't match.
         sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY, ItemContract.PATH_ITEMS + "/#", CATALOG_ID);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/search?q=..."
+        // will map to the integer code {@link #CATALOG_SEARCH}. This URI is used to search
+        // item names and brands through the full-text index.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SEARCH, CATALOG_SEARCH);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/export" is
+        // opened as a file rather than queried.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_EXPORT, CATALOG_EXPORT);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/changes?since=..."
+        // will map to the integer code {@link #CATALOG_CHANGES}.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_CHANGES, CATALOG_CHANGES);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/sku/<code>"
+        // will map to the integer code {@link #CATALOG_SKU}.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SKU + "/*", CATALOG_SKU);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/stats"
+        // will map to the integer code {@link #CATALOG_STATS}.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_STATS, CATALOG_STATS);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/low_stock"
+        // will map to the integer code {@link #CATALOG_LOW_STOCK}.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_LOW_STOCK, CATALOG_LOW_STOCK);
+
+        // The content URI of the form "content://com.elbrus.warehouse.catalog/items/#/movements"
+        // will map to the integer code {@link #CATALOG_ID_MOVEMENTS}.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/#/" + ItemContract.PATH_MOVEMENTS, CATALOG_ID_MOVEMENTS);
     }
 
+    /** Names under which operations are recorded in the metrics */
+    private static final String METRIC_QUERY = "query";
+    private static final String METRIC_INSERT = "insert";
+    private static final String METRIC_BULK_INSERT = "bulk_insert";
+    private static final String METRIC_UPDATE = "update";
+    private static final String METRIC_DELETE = "delete";
+    private static final String METRIC_BATCH = "batch";
+    private static final String METRIC_CALL = "call ";
+
+    /**
+     * Methods recorded under their own name. Any other method is recorded as "call unknown", so
+     * callers passing made-up names can't grow the metrics without bound.
+     */
+    private static final Set<String> METRIC_METHODS = new HashSet<>(Arrays.asList(
+            ItemContract.METHOD_SET_NOTIFICATION_WINDOW, ItemContract.METHOD_QUERY_CACHE_STATS,
+            ItemContract.METHOD_SET_SLOW_QUERY_THRESHOLD, ItemContract.METHOD_SLOW_QUERIES,
+            ItemContract.METHOD_RUN_MAINTENANCE, ItemContract.METHOD_CHECK_STATS,
+            ItemContract.METHOD_METRICS, ItemContract.METHOD_ADJUST_AMOUNT,
+            ItemContract.METHOD_ADJUST_AMOUNTS, ItemContract.METHOD_UPDATE_ITEM,
+            ItemContract.METHOD_STOCK_AT, ItemContract.METHOD_PRICE_HISTOGRAM,
+            ItemContract.METHOD_RESOLVE_SKUS, ItemContract.METHOD_IMPORT_CHUNK,
+            ItemContract.METHOD_GET_IMPORT_POSITION, ItemContract.METHOD_FINISH_IMPORT));
+
+    /** Selection of the items that haven't been deleted */
+    private static final String LIVE_SELECTION =
+            ItemContract.ItemEntry.COLUMN_ITEM_DELETED_AT + " IS NULL";
+
+    /** Deleted items purged per transaction by maintenance */
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    /** Free pages released per incremental vacuum step of maintenance */
+    private static final int VACUUM_STEP_PAGES = 256;
+
+    /** Value of PRAGMA auto_vacuum once incremental vacuum is on */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Number of slow queries kept in the slow-query log */
+    private static final int SLOW_QUERY_LOG_SIZE = 32;
+
+    /** Total number of rows the query cache may hold */
+    private static final int QUERY_CACHE_ROWS = 2000;
+
     /** Database helper object */
     private ItemDbHelper mDbHelper;
 
+    /** Recent query results, dropped as soon as anything is written */
+    private final QueryCache mQueryCache = new QueryCache(QUERY_CACHE_ROWS);
+
+    /** Counters and latency histograms, read through {@link ItemContract#METHOD_METRICS} */
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    /** Recent slow queries, read through {@link ItemContract#METHOD_SLOW_QUERIES} */
+    private final SlowQueryLog mSlowQueryLog = new SlowQueryLog(SLOW_QUERY_LOG_SIZE);
+
+    /**
+     * Content URIs changed by the batch currently running on this thread, or null when the
+     * thread isn't inside {@link #applyBatch}. Notifications are held back until the batch
+     * commits so listeners see each URI change only once.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    /** Handler that sends the notifications collected during a notification window */
+    private final Handler mNotificationHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Content URIs changed since the current notification window opened. Also guards
+     * {@link #mNotificationWindowMillis}.
+     */
+    private final Set<Uri> mWindowNotifications = new LinkedHashSet<>();
+
+    /** How long changes are collected before listeners are notified, 0 to notify right away */
+    private long mNotificationWindowMillis;
+
 
     @Override
     public boolean onCreate() {
@@ -60,6 +247,8 @@ public class ItemProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -68,221 +257,2013 @@ public class ItemProvider extends ContentProvider {
 
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
-        switch (match) {
-            case CATALOG:
-                // For the CATALOG code, query the catalog table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the items table.
-                cursor = database.query(ItemContract.ItemEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
-                break;
-            case CATALOG_ID:
-                // For the CATALOG_ID code, extract out the ID from the URI.
-                // For an example URI such as "content://com.elbrus.warehouse.catalog/catalog/3",
-                // the selection will be "_id=?" and the selection argument will be a
-                // String array containing the actual ID of 3 in this case.
-                //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = ItemContract.ItemEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-
-                // This will perform a query on the catalog table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(ItemContract.ItemEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
-                break;
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
-        }
 
-        // Set notification URI on the Cursor,
-        // so we know what content URI the Cursor was created for.
-        // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        try {
+            // Answer catalog and single item queries from the cache when nothing has been written
+            // since the same query last ran
+            QueryCache.Key cacheKey = null;
+            long cacheGeneration = 0;
+            if (match == CATALOG || match == CATALOG_ID) {
+                cacheKey = new QueryCache.Key(uri, projection, selection, selectionArgs, sortOrder);
+                cursor = mQueryCache.get(cacheKey);
+                if (cursor != null) {
+                    cursor.setNotificationUri(getContext().getContentResolver(), uri);
+                    return cursor;
+                }
+                cacheGeneration = mQueryCache.generation();
+            }
 
-        // Return the cursor
-        return cursor;
-    }
+            switch (match) {
+                case CATALOG:
+                    // For the CATALOG code, query the catalog table directly with the given
+                    // projection, selection, selection arguments, and sort order. The cursor
+                    // could contain multiple rows of the items table. Paging parameters in the URI
+                    // narrow this down to a single page.
+                    cursor = queryItems(database, uri, projection, selection, selectionArgs, sortOrder);
+                    break;
+                case CATALOG_ID:
+                    // For the CATALOG_ID code, extract out the ID from the URI.
+                    // For an example URI such as "content://com.elbrus.warehouse.catalog/catalog/3",
+                    // the selection will be "_id=?" and the selection argument will be a
+                    // String array containing the actual ID of 3 in this case.
+                    //
+                    // For every "?" in the selection, we need to have an element in the selection
+                    // arguments that will fill in the "?". Since we have 1 question mark in the
+                    // selection, we have 1 String in the selection arguments' String array.
+                    selection = ItemContract.ItemEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
 
-    @Override
-    public String getType(Uri uri) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case CATALOG:
-                return ItemContract.ItemEntry.CONTENT_LIST_TYPE;
-            case CATALOG_ID:
-                return ItemContract.ItemEntry.CONTENT_ITEM_TYPE;
-            default:
-                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
+                    // This will perform a query on the catalog table where the _id equals 3 to return a
+                    // Cursor containing that row of the table.
+                    cursor = queryCatalog(database, projection, selection, selectionArgs,
+                            sortOrder, null);
+                    break;
+                case CATALOG_SKU:
+                    // A single seek in the unique sku index
+                    selection = ItemContract.ItemEntry.COLUMN_ITEM_SKU + "=?";
+                    selectionArgs = new String[] { uri.getLastPathSegment() };
+                    cursor = queryCatalog(database, projection, selection, selectionArgs,
+                            null, null);
+
+                    // Which item holds a code can change with a write to any item
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ItemContract.ItemEntry.CONTENT_URI);
+                    return cursor;
+                case CATALOG_LOW_STOCK:
+                    // The low-stock index only holds a key for the items that are low
+                    selection = DatabaseUtils.concatenateWhere(
+                            ItemContract.ItemEntry.COLUMN_ITEM_LOW_STOCK + " = 1", selection);
+                    cursor = queryCatalog(database, projection, selection, selectionArgs,
+                            sortOrder, null);
+
+                    // Any write can take an item below its reorder point
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ItemContract.ItemEntry.CONTENT_URI);
+                    return cursor;
+                case CATALOG_ID_MOVEMENTS:
+                    // The tail of the journal for one item, found through the item index
+                    selection = DatabaseUtils.concatenateWhere(
+                            ItemContract.MovementEntry.COLUMN_ITEM_ID + "=?", selection);
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(
+                            new String[] { uri.getPathSegments().get(1) }, selectionArgs);
+                    cursor = database.query(ItemContract.MovementEntry.TABLE_NAME, projection,
+                            selection, selectionArgs, null, null, sortOrder == null
+                                    ? ItemContract.MovementEntry._ID : sortOrder);
+
+                    // New movements come with changes of the item
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ContentUris.withAppendedId(ItemContract.ItemEntry.CONTENT_URI,
+                                    Long.parseLong(uri.getPathSegments().get(1))));
+                    return cursor;
+                case CATALOG_STATS:
+                    // A handful of rows kept up to date by triggers, whatever the catalog size
+                    cursor = database.query(ItemContract.StatsEntry.TABLE_NAME, projection,
+                            selection, selectionArgs, null, null, sortOrder == null
+                                    ? ItemContract.StatsEntry.COLUMN_DIMENSION + ", "
+                                    + ItemContract.StatsEntry.COLUMN_BUCKET : sortOrder);
+
+                    // The statistics change with a write to any item
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ItemContract.ItemEntry.CONTENT_URI);
+                    return cursor;
+                case CATALOG_SEARCH:
+                    cursor = searchItems(database, uri, projection, selection, selectionArgs, sortOrder);
+
+                    // Search results change whenever any item changes, so listen to the whole catalog
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ItemContract.ItemEntry.CONTENT_URI);
+                    return cursor;
+                case CATALOG_CHANGES:
+                    cursor = queryChanges(database, uri, projection, selection, selectionArgs);
+
+                    // New changes can come from a write to any item
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            ItemContract.ItemEntry.CONTENT_URI);
+                    return cursor;
+                default:
+                    throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+            }
+
+            if (cacheKey != null) {
+                cursor = mQueryCache.put(cacheKey, cursor, cacheGeneration);
+            }
+
+            // Set notification URI on the Cursor,
+            // so we know what content URI the Cursor was created for.
+            // If the data at this URI changes, then we know we need to update the Cursor.
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+            // Return the cursor
+            return cursor;
+        } finally {
+            // Rows aren't counted for queries, that would mean reading the whole result
+            mMetrics.record(metricName(METRIC_QUERY, match), start, 0);
         }
     }
 
-    @Override
-    public Uri insert(Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case CATALOG:
-                return insertItem(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+    /**
+     * Query the catalog table, applying the keyset paging parameters of the URI if there are any.
+     * A page is selected with a range condition on the ordering key rather than with OFFSET,
+     * so SQLite seeks straight to it through the primary key or the name index.
+     */
+    private Cursor queryItems(SQLiteDatabase database, Uri uri, String[] projection,
+                              String selection, String[] selectionArgs, String sortOrder) {
+        String afterId = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_AFTER_ID);
+        String afterName = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_AFTER_NAME);
+        String untilId = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_UNTIL_ID);
+        String untilName = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_UNTIL_NAME);
+        String limit = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_LIMIT);
+
+        // Check that the paging parameters are numbers before they go into the SQL
+        if (limit != null) {
+            limit = String.valueOf(parseLongParameter(uri, ItemContract.ItemEntry.QUERY_PARAMETER_LIMIT, limit));
+        }
+
+        boolean byName = afterName != null || untilName != null;
+        if (afterId != null || untilId != null || byName) {
+            sortOrder = byName
+                    ? ItemContract.ItemEntry.COLUMN_ITEM_NAME + ", " + ItemContract.ItemEntry._ID
+                    : ItemContract.ItemEntry._ID;
+        }
+
+        String name = ItemContract.ItemEntry.COLUMN_ITEM_NAME;
+        String id = ItemContract.ItemEntry._ID;
+        List<String> keyArgs = new ArrayList<>();
+        String keySelection = null;
+
+        if (afterId != null || afterName != null) {
+            String lastId = String.valueOf(parseLongParameter(uri,
+                    ItemContract.ItemEntry.QUERY_PARAMETER_AFTER_ID, afterId == null ? "0" : afterId));
+            if (afterName != null) {
+                // (name, _id) > (afterName, afterId), written so the name index bounds the range
+                keySelection = name + " >= ? AND (" + name + " > ? OR " + id + " > ?)";
+                keyArgs.add(afterName);
+                keyArgs.add(afterName);
+                keyArgs.add(lastId);
+            } else {
+                keySelection = id + " > ?";
+                keyArgs.add(lastId);
+            }
+        }
+
+        if (untilId != null || untilName != null) {
+            String lastId = String.valueOf(parseLongParameter(uri,
+                    ItemContract.ItemEntry.QUERY_PARAMETER_UNTIL_ID,
+                    untilId == null ? String.valueOf(Long.MAX_VALUE) : untilId));
+            if (untilName != null) {
+                // (name, _id) <= (untilName, untilId)
+                keySelection = DatabaseUtils.concatenateWhere(keySelection,
+                        name + " <= ? AND (" + name + " < ? OR " + id + " <= ?)");
+                keyArgs.add(untilName);
+                keyArgs.add(untilName);
+                keyArgs.add(lastId);
+            } else {
+                keySelection = DatabaseUtils.concatenateWhere(keySelection, id + " <= ?");
+                keyArgs.add(lastId);
+            }
+        }
+
+        // Price bounds, read from the price index
+        String minPrice = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_MIN_PRICE_CENTS);
+        String maxPrice = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_MAX_PRICE_CENTS);
+        String priceCents = ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS;
+        if (minPrice != null) {
+            keySelection = DatabaseUtils.concatenateWhere(keySelection, priceCents + " >= ?");
+            keyArgs.add(String.valueOf(parseLongParameter(uri,
+                    ItemContract.ItemEntry.QUERY_PARAMETER_MIN_PRICE_CENTS, minPrice)));
+        }
+        if (maxPrice != null) {
+            keySelection = DatabaseUtils.concatenateWhere(keySelection, priceCents + " <= ?");
+            keyArgs.add(String.valueOf(parseLongParameter(uri,
+                    ItemContract.ItemEntry.QUERY_PARAMETER_MAX_PRICE_CENTS, maxPrice)));
         }
+
+        if (keySelection != null) {
+            selection = DatabaseUtils.concatenateWhere(keySelection, selection);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(
+                    keyArgs.toArray(new String[keyArgs.size()]), selectionArgs);
+        }
+
+        return queryCatalog(database, projection, selection, selectionArgs, sortOrder, limit);
     }
 
     /**
-     * Insert an item into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Parse a numeric query parameter of the given URI, rejecting anything that isn't a number.
      */
-    private Uri insertItem(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(ItemContract.ItemEntry.COLUMN_ITEM_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Item requires a name");
+    private static long parseLongParameter(Uri uri, String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " parameter in " + uri);
         }
+    }
 
-        // Check that the price is valid
-        Integer price = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_PRICE);
-        if (price == null ) {
-            throw new IllegalArgumentException("item requires valid price");
-        }
+    /**
+     * Search the catalog for items whose name or brand contains words starting with the words of
+     * the search text. The caller's selection, if any, further restricts the matches.
+     *
+     * With paging parameters the matches are paged by _id exactly like the catalog, see
+     * {@link #queryItems}, so a page costs a bounded amount of work however many items match.
+     * Without them, and without an explicit sort order, items whose name starts with the search
+     * text come first, then items whose brand does, then the rest, each group sorted by name;
+     * that order sorts every match, so it is only for small result sets.
+     */
+    private Cursor searchItems(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder) {
+        String text = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_SEARCH);
+        String matchExpression = buildMatchExpression(text);
 
-        // If the weight is provided, check that it's greater than or equal to 0 kg
-        Integer amount = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
-        if (amount != null && amount < 0) {
-            throw new IllegalArgumentException("Item requires valid amount");
+        // Nothing searchable was typed, so nothing matches. The constant false selection
+        // returns the columns without reading a single row.
+        if (matchExpression == null) {
+            return runQuery(database, projection, "0", null, null, null);
         }
 
-        // No need to check the brand, any value is valid (including null).
+        // The full-text index returns matching docids, which are the _ids of the catalog rows,
+        // so the catalog itself is only touched for the rows that actually match.
+        String searchSelection = ItemContract.ItemEntry._ID + " IN (SELECT docid FROM "
+                + ItemContract.ItemEntry.FTS_TABLE_NAME + " WHERE "
+                + ItemContract.ItemEntry.FTS_TABLE_NAME + " MATCH ?)";
+        selection = DatabaseUtils.concatenateWhere(searchSelection, selection);
+        selectionArgs = DatabaseUtils.appendSelectionArgs(
+                new String[] { matchExpression }, selectionArgs);
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean paged = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_LIMIT) != null
+                || uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_AFTER_ID) != null
+                || uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_UNTIL_ID) != null;
+        if (paged) {
+            // A limit alone pages from the first match on, in the same order as later pages
+            sortOrder = ItemContract.ItemEntry._ID;
+        } else if (TextUtils.isEmpty(sortOrder)) {
+            String prefix = DatabaseUtils.sqlEscapeString(text.trim() + "%");
+            sortOrder = "(" + ItemContract.ItemEntry.COLUMN_ITEM_NAME + " LIKE " + prefix + ") DESC, "
+                    + "(" + ItemContract.ItemEntry.COLUMN_ITEM_BRAND + " LIKE " + prefix + ") DESC, "
+                    + ItemContract.ItemEntry.COLUMN_ITEM_NAME;
+        }
 
-        // Insert the new item with the given values
-        long id = database.insert(ItemContract.ItemEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        return queryItems(database, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Query the items changed after the version given in the URI, deleted ones included, in the
+     * order they changed. The change_version index finds them without touching the rest of the
+     * catalog.
+     */
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection,
+                                String selection, String[] selectionArgs) {
+        String since = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_SINCE);
+        String limit = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            limit = String.valueOf(parseLongParameter(uri, ItemContract.ItemEntry.QUERY_PARAMETER_LIMIT, limit));
         }
 
-        // Notify all listeners that the data has changed for the item content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        selection = DatabaseUtils.concatenateWhere(
+                ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " > ?", selection);
+        selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] {
+                String.valueOf(parseLongParameter(uri, ItemContract.ItemEntry.QUERY_PARAMETER_SINCE,
+                        since == null ? "0" : since)) }, selectionArgs);
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+        return runQuery(database, projection, selection, selectionArgs,
+                ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION, limit);
     }
 
-    @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Run a query on the live items of the catalog table, see {@link #runQuery}.
+     */
+    private Cursor queryCatalog(SQLiteDatabase database, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder, String limit) {
+        // Deleted items stay in the table until maintenance purges them
+        selection = DatabaseUtils.concatenateWhere(LIVE_SELECTION, selection);
+        return runQuery(database, projection, selection, selectionArgs, sortOrder, limit);
+    }
 
-        // Track the number of rows that were deleted
-        int rowsDeleted;
+    /**
+     * Run a query on the catalog table. The first window of the result is filled right away,
+     * which the caller would trigger anyway on first access, so the time the query takes is
+     * known here. Queries slower than the slow-query threshold are logged with their plan.
+     */
+    private Cursor runQuery(SQLiteDatabase database, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder, String limit) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, ItemContract.ItemEntry.TABLE_NAME,
+                projection, selection, null, null, sortOrder, limit);
 
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case CATALOG:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(ItemContract.ItemEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            case CATALOG_ID:
-                // Delete a single row given by the ID in the URI
-                selection = ItemContract.ItemEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(ItemContract.ItemEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            default:
-                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        long start = System.nanoTime();
+        Cursor cursor = database.rawQuery(sql, selectionArgs);
+        cursor.getCount();
+        long nanos = System.nanoTime() - start;
+
+        if (mSlowQueryLog.isSlow(nanos)) {
+            String plan = explainQueryPlan(database, sql, selectionArgs);
+            Log.w(LOG_TAG, "Slow query (" + nanos / 1000000 + " ms): " + sql + "\n" + plan);
+            mSlowQueryLog.add(sql, selectionArgs, nanos, plan);
         }
+        return cursor;
+    }
 
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Return the plan SQLite chooses for the given query, one step per line.
+     */
+    private static String explainQueryPlan(SQLiteDatabase database, String sql, String[] args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
         }
+        return plan.toString();
+    }
 
-        // Return the number of rows deleted
-        return rowsDeleted;
+    /**
+     * Turn free text typed by the user into an FTS MATCH expression where every word is a prefix
+     * query, for example "sam gal" becomes "sam* gal*". Characters with a meaning in the MATCH
+     * syntax are dropped. Return null if there is nothing left to search for.
+     */
+    private static String buildMatchExpression(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder expression = new StringBuilder();
+        for (String word : text.split("\\s+")) {
+            String term = word.replaceAll("[^\\p{L}\\p{N}]", "");
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append(term).append('*');
+        }
+        return expression.length() == 0 ? null : expression.toString();
     }
 
     @Override
-    public int update(Uri uri, ContentValues contentValues, String selection,
-                      String[] selectionArgs) {
+    public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case CATALOG:
-                return updateItem(uri, contentValues, selection, selectionArgs);
+            case CATALOG_SEARCH:
+            case CATALOG_CHANGES:
+            case CATALOG_LOW_STOCK:
+                return ItemContract.ItemEntry.CONTENT_LIST_TYPE;
+            case CATALOG_ID_MOVEMENTS:
+                return ItemContract.MovementEntry.CONTENT_LIST_TYPE;
             case CATALOG_ID:
-                // For the CATALOG_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = ItemContract.ItemEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateItem(uri, contentValues, selection, selectionArgs);
+            case CATALOG_SKU:
+                return ItemContract.ItemEntry.CONTENT_ITEM_TYPE;
+            case CATALOG_STATS:
+                return ItemContract.StatsEntry.CONTENT_LIST_TYPE;
+            case CATALOG_EXPORT:
+                return isJsonExport(uri) ? ItemContract.ItemEntry.CONTENT_JSON_TYPE
+                        : ItemContract.ItemEntry.CONTENT_CSV_TYPE;
             default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
     /**
-     * Update catalog in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more items).
-     * Return the number of rows that were successfully updated.
+     * Open an export of the catalog. The rows are read on a background thread in chunks of
+     * {@link #EXPORT_CHUNK_SIZE}, each chunk a query that seeks past the last _id of the one
+     * before, and written straight into a pipe as they come. The export therefore takes
+     * constant memory, no temporary file, and time linear in its size. Each chunk is read on
+     * its own, so writes committed during a long export show up in the chunks read after them.
      */
-    private int updateItem(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link ItemEntry#COLUMN_ITEM_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_NAME)) {
-            String name = values.getAsString(ItemContract.ItemEntry.COLUMN_ITEM_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Item requires a name");
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != CATALOG_EXPORT) {
+            throw new FileNotFoundException("Cannot open unknown URI " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Exports can only be read, not opened with " + mode);
+        }
+
+        // Only known columns may be exported, so the projection can't smuggle in expressions
+        String[] projection = EXPORT_COLUMNS;
+        String columns = uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_COLUMNS);
+        if (!TextUtils.isEmpty(columns)) {
+            projection = columns.split(",");
+            for (String column : projection) {
+                if (!Arrays.asList(EXPORT_COLUMNS).contains(column)) {
+                    throw new IllegalArgumentException("Cannot export unknown column " + column);
+                }
             }
         }
 
-        // If the {@link ItemEntry#COLUMN_ITEM_PRICE} key is present,
-        // check that the gender value is valid.
-        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_PRICE)) {
-            Integer price = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_PRICE);
-            if (price == null) {
-                throw new IllegalArgumentException("Item requires valid price");
+        List<String> selectionArgs =
+                uri.getQueryParameters(ItemContract.ItemEntry.QUERY_PARAMETER_SELECTION_ARG);
+
+        // Reading the first chunk here reports a bad selection to the caller rather than in the pipe
+        ExportReader rows = new ExportReader(mDbHelper.getReadableDatabase(), projection,
+                DatabaseUtils.concatenateWhere(LIVE_SELECTION,
+                        uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_SELECTION)),
+                selectionArgs.toArray(new String[selectionArgs.size()]));
+
+        // From KitKat on, a reliable pipe lets a failure reach the reader as an error instead
+        // of an end of file after the rows written so far
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? ParcelFileDescriptor.createReliablePipe() : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            rows.close();
+            throw new FileNotFoundException("Cannot open a pipe for " + uri);
+        }
+
+        final Uri exportUri = uri;
+        final ExportReader exportRows = rows;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeExport(pipe[1], exportUri, exportRows);
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Write an export into the write end of its pipe, then close it. A failure while reading the
+     * rows, such as a later chunk running into a closed database, closes the pipe with an error,
+     * so the reader doesn't take the rows written so far for the whole export. Before KitKat a
+     * pipe can't carry an error, and the reader only sees the export end early.
+     */
+    private static void writeExport(ParcelFileDescriptor output, Uri uri, ExportReader rows) {
+        // The stream doesn't own the descriptor, the pipe end is closed through output below
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()),
+                Charset.forName("UTF-8")), 64 * 1024);
+        String error = null;
+        try {
+            if (isJsonExport(uri)) {
+                writeJson(rows, writer);
+            } else {
+                writeCsv(rows, writer);
             }
+            writer.flush();
+        } catch (IOException e) {
+            // The reader went away before the end of the export
+            Log.w(LOG_TAG, "Export of " + uri + " cut short", e);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Export of " + uri + " failed", e);
+            error = "Export failed: " + e;
+        } finally {
+            rows.close();
         }
 
-        // If the {@link ItemEntry#COLUMN_ITEM_AMOUNT} key is present,
-        // check that the weight value is valid.
-        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT)) {
-            // Check that the amount is greater than or equal to 0
-            Integer amount = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
-            if (amount != null && amount < 0) {
-                throw new IllegalArgumentException("Item requires valid amount");
+        try {
+            if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                output.closeWithError(error);
+            } else {
+                output.close();
             }
+        } catch (IOException e) {
+            // Nothing left to tell the reader
         }
+    }
 
-        // No need to check the brand, any value is valid (including null).
+    private static boolean isJsonExport(Uri uri) {
+        return ItemContract.ItemEntry.FORMAT_JSON.equals(
+                uri.getQueryParameter(ItemContract.ItemEntry.QUERY_PARAMETER_FORMAT));
+    }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
+    /**
+     * Reads the live items of an export in _id order, {@link #EXPORT_CHUNK_SIZE} rows per query.
+     * Every query seeks past the last _id read through the primary key, so no row is stepped
+     * over twice, whereas a single cursor re-runs its query from the start each time it refills
+     * its window.
+     */
+    private static final class ExportReader {
+        private final SQLiteDatabase mDatabase;
+        private final String[] mColumns;
+        private final String[] mQueryColumns;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+
+        /** Current chunk, null once every chunk has been read */
+        private Cursor mChunk;
+
+        /**
+         * Constructs a new {@link ExportReader} for the given columns of the items matching the
+         * selection, and reads the first chunk.
+         */
+        ExportReader(SQLiteDatabase database, String[] columns, String selection,
+                     String[] selectionArgs) {
+            mDatabase = database;
+            mColumns = columns;
+
+            // The _id goes last, after the exported columns, to know where the chunk ended
+            mQueryColumns = Arrays.copyOf(columns, columns.length + 1);
+            mQueryColumns[columns.length] = ItemContract.ItemEntry._ID;
+            mSelection = DatabaseUtils.concatenateWhere(
+                    ItemContract.ItemEntry._ID + " > ?", selection);
+            mSelectionArgs = DatabaseUtils.appendSelectionArgs(new String[] { "0" }, selectionArgs);
+            mChunk = readChunk();
         }
 
-        // Otherwise, get writeable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        /** Return the names of the exported columns */
+        String[] getColumnNames() {
+            return mColumns;
+        }
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(ItemContract.ItemEntry.TABLE_NAME, values, selection, selectionArgs);
+        /**
+         * Move to the next row, reading the next chunk once the current one is used up. Return
+         * false after the last row.
+         */
+        boolean moveToNext() {
+            while (mChunk != null) {
+                if (mChunk.moveToNext()) {
+                    return true;
+                }
+                boolean full = mChunk.getCount() == EXPORT_CHUNK_SIZE;
+                if (full && mChunk.moveToLast()) {
+                    mSelectionArgs[0] = String.valueOf(mChunk.getLong(mColumns.length));
+                }
+                mChunk.close();
+                mChunk = full ? readChunk() : null;
+            }
+            return false;
+        }
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        /** Return the current row, with the exported columns at their index in the export */
+        Cursor row() {
+            return mChunk;
         }
 
-        // Return the number of rows updated
-        return rowsUpdated;
+        void close() {
+            if (mChunk != null) {
+                mChunk.close();
+                mChunk = null;
+            }
+        }
+
+        private Cursor readChunk() {
+            return mDatabase.query(ItemContract.ItemEntry.TABLE_NAME, mQueryColumns, mSelection,
+                    mSelectionArgs, null, null, ItemContract.ItemEntry._ID,
+                    String.valueOf(EXPORT_CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Write the rows as CSV, starting with a header row of the column names.
+     */
+    private static void writeCsv(ExportReader rows, Writer writer) throws IOException {
+        String[] columns = rows.getColumnNames();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(columns[i]);
+        }
+        writer.write("\r\n");
+
+        while (rows.moveToNext()) {
+            Cursor cursor = rows.row();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                String value = cursor.getString(i);
+                if (value == null) {
+                    continue;
+                }
+                // Quote values that would otherwise break the record apart
+                if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                        || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                    writer.write('"');
+                    writer.write(value.replace("\"", "\"\""));
+                    writer.write('"');
+                } else {
+                    writer.write(value);
+                }
+            }
+            writer.write("\r\n");
+        }
+    }
+
+    /**
+     * Write the rows as a JSON array of objects keyed by column name.
+     */
+    private static void writeJson(ExportReader rows, Writer writer) throws IOException {
+        String[] columns = rows.getColumnNames();
+        writer.write('[');
+        boolean first = true;
+        while (rows.moveToNext()) {
+            Cursor cursor = rows.row();
+            writer.write(first ? "\n{" : ",\n{");
+            first = false;
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeJsonString(columns[i], writer);
+                writer.write(':');
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        writer.write("null");
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        writer.write(Long.toString(cursor.getLong(i)));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        writer.write(Double.toString(cursor.getDouble(i)));
+                        break;
+                    default:
+                        writeJsonString(cursor.getString(i), writer);
+                        break;
+                }
+            }
+            writer.write('}');
+        }
+        writer.write("\n]\n");
+    }
+
+    private static void writeJsonString(String value, Writer writer) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
     }
 
+    @Override
+    public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        Uri itemUri = null;
+        try {
+            switch (match) {
+                case CATALOG:
+                    itemUri = insertItem(uri, contentValues);
+                    return itemUri;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.record(metricName(METRIC_INSERT, match), start, itemUri == null ? 0 : 1);
+        }
+    }
 
+    /**
+     * Insert an item into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertItem(Uri uri, ContentValues values) {
+        // Make sure the values describe a valid item before touching the database
+        validateItem(values);
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Insert the new item with the given values, and journal its initial stock in the same
+        // transaction
+        long id;
+        database.beginTransaction();
+        StockJournal journal = new StockJournal(database);
+        try {
+            id = database.insert(ItemContract.ItemEntry.TABLE_NAME, null, values);
+            if (id != -1) {
+                journal.record(id, initialAmount(values),
+                        ItemContract.MovementEntry.REASON_RECEIVED, System.currentTimeMillis());
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            journal.close();
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Cached results no longer reflect the catalog
+        mQueryCache.invalidate();
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        Uri itemUri = ContentUris.withAppendedId(uri, id);
+
+        // Notify listeners that the data has changed for the new item. Observers of the whole
+        // catalog hear about it too, observers of other single items don't.
+        notifyChange(itemUri);
+
+        return itemUri;
+    }
+
+    /**
+     * Check that the given content values describe a valid new item. Throws an
+     * {@link IllegalArgumentException} if any of the required attributes is missing or invalid.
+     */
+    private static void validateItem(ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(ItemContract.ItemEntry.COLUMN_ITEM_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Item requires a name");
+        }
+
+        // Check that the price is valid
+        Integer price = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_PRICE);
+        if (price == null ) {
+            throw new IllegalArgumentException("item requires valid price");
+        }
+
+        // If the price in cents is provided, check that it isn't negative. Otherwise price the
+        // item at the value of its tier.
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS)) {
+            checkPriceCents(values);
+        } else {
+            values.put(ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS,
+                    ItemContract.ItemEntry.centsForPrice(price));
+        }
+
+        // If the weight is provided, check that it's greater than or equal to 0 kg
+        Integer amount = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
+        if (amount != null && amount < 0) {
+            throw new IllegalArgumentException("Item requires valid amount");
+        }
+
+        checkReorderPoint(values);
+
+        // No need to check the brand, any value is valid (including null).
+    }
+
+    /**
+     * If the reorder point is provided, check that it's a number greater than or equal to 0.
+     * The low-stock flag is derived by triggers and can't be written.
+     */
+    private static void checkReorderPoint(ContentValues values) {
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_REORDER_POINT)) {
+            Integer reorderPoint = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_REORDER_POINT);
+            if (reorderPoint == null || reorderPoint < 0) {
+                throw new IllegalArgumentException("Item requires valid reorder point");
+            }
+        }
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_LOW_STOCK)) {
+            throw new IllegalArgumentException("The low-stock flag can't be written");
+        }
+    }
+
+    private static void checkPriceCents(ContentValues values) {
+        Long priceCents = values.getAsLong(ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS);
+        if (priceCents == null || priceCents < 0) {
+            throw new IllegalArgumentException("Item requires valid price in cents");
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        int accepted = 0;
+        try {
+            switch (match) {
+                case CATALOG:
+                    accepted = bulkInsertItems(uri, values);
+                    return accepted;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.record(metricName(METRIC_BULK_INSERT, match), start, accepted);
+        }
+    }
+
+    /**
+     * Insert all of the given items inside a single transaction. Every row goes through the same
+     * validation as {@link #insertItem}; rows that fail it are skipped and counted as rejected
+     * instead of aborting the whole batch. Listeners are notified once, after the commit.
+     * Return the number of rows that were accepted. {@link ContentProvider#bulkInsert} has no
+     * way to return the rejected count as well, so it is only logged here;
+     * {@link ItemContract#METHOD_IMPORT_CHUNK} returns both.
+     */
+    private int bulkInsertItems(Uri uri, ContentValues[] values) {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int accepted;
+        database.beginTransaction();
+        try {
+            accepted = insertItems(database, values);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Cached results no longer reflect the catalog
+        if (accepted != 0) {
+            mQueryCache.invalidate();
+        }
+
+        Log.i(LOG_TAG, "Bulk insert into " + uri + ": " + accepted + " rows accepted, "
+                + (values.length - accepted) + " rows rejected");
+
+        // Notify all listeners once for the whole batch
+        if (accepted != 0) {
+            notifyChange(uri);
+        }
+
+        // Return the number of rows inserted
+        return accepted;
+    }
+
+    /**
+     * Insert the given items with the caller's transaction already open. Rows that fail the
+     * validation of {@link #insertItem} or a table constraint are skipped. Return the number
+     * of rows inserted.
+     */
+    private static int insertItems(SQLiteDatabase database, ContentValues[] values) {
+        // Compiled INSERT statements, one per distinct set of columns, reused for every row
+        Map<String, SQLiteStatement> statements = new HashMap<>();
+        StockJournal journal = new StockJournal(database);
+        long now = System.currentTimeMillis();
+
+        int accepted = 0;
+        try {
+            for (ContentValues row : values) {
+                try {
+                    validateItem(row);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+
+                // Build the column list for this row. Most deliveries use the same columns for
+                // every row, so this normally compiles a single statement for the whole batch.
+                List<String> columns = new ArrayList<>(row.keySet());
+                Collections.sort(columns);
+                String key = TextUtils.join(",", columns);
+
+                SQLiteStatement statement = statements.get(key);
+                if (statement == null) {
+                    statement = database.compileStatement(buildInsertSql(columns));
+                    statements.put(key, statement);
+                }
+
+                statement.clearBindings();
+                for (int i = 0; i < columns.size(); i++) {
+                    bindValue(statement, i + 1, row.get(columns.get(i)));
+                }
+
+                try {
+                    long id = statement.executeInsert();
+                    journal.record(id, initialAmount(row),
+                            ItemContract.MovementEntry.REASON_RECEIVED, now);
+                    accepted++;
+                } catch (SQLiteConstraintException e) {
+                    // Rejected by the table, skip it like an invalid row
+                }
+            }
+        } finally {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            journal.close();
+        }
+        return accepted;
+    }
+
+    /**
+     * Return the amount a new item with the given values starts with.
+     */
+    private static int initialAmount(ContentValues values) {
+        Integer amount = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
+        return amount == null ? 0 : amount;
+    }
+
+    /**
+     * Build an "INSERT INTO catalog (...) VALUES (?, ...)" statement for the given columns.
+     */
+    private static String buildInsertSql(List<String> columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(ItemContract.ItemEntry.TABLE_NAME)
+                .append(" (")
+                .append(TextUtils.join(", ", columns))
+                .append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Bind a single value taken from {@link ContentValues} to the given statement index,
+     * keeping its SQLite storage class.
+     */
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Track the number of rows that were deleted
+        int rowsDeleted = 0;
+
+        // Deleting only marks the rows as deleted, which costs a small update per row instead of
+        // reshuffling the table and its indexes. Maintenance purges the rows later.
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(ItemContract.ItemEntry.COLUMN_ITEM_DELETED_AT, System.currentTimeMillis());
+        // Free the code of the item, so a new item can take it
+        tombstone.putNull(ItemContract.ItemEntry.COLUMN_ITEM_SKU);
+
+        final int match = sUriMatcher.match(uri);
+        try {
+            switch (match) {
+                case CATALOG:
+                    // Delete all live rows that match the selection and selection args
+                    rowsDeleted = database.update(ItemContract.ItemEntry.TABLE_NAME, tombstone,
+                            DatabaseUtils.concatenateWhere(LIVE_SELECTION, selection), selectionArgs);
+                    break;
+                case CATALOG_ID:
+                    // Delete a single row given by the ID in the URI
+                    selection = ItemContract.ItemEntry._ID + "=? AND " + LIVE_SELECTION;
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                    rowsDeleted = database.update(ItemContract.ItemEntry.TABLE_NAME, tombstone,
+                            selection, selectionArgs);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Deletion is not supported for " + uri);
+            }
+
+            // If 1 or more rows were deleted, then drop the cached results and notify all
+            // listeners that the data at the given URI has changed
+            if (rowsDeleted != 0) {
+                mQueryCache.invalidate();
+                notifyChange(uri);
+            }
+
+            // Return the number of rows deleted
+            return rowsDeleted;
+        } finally {
+            mMetrics.record(metricName(METRIC_DELETE, match), start, rowsDeleted);
+        }
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection,
+                      String[] selectionArgs) {
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        int rowsUpdated = 0;
+        try {
+            switch (match) {
+                case CATALOG:
+                    rowsUpdated = updateItem(uri, contentValues, selection, selectionArgs);
+                    return rowsUpdated;
+                case CATALOG_ID:
+                    // For the CATALOG_ID code, extract out the ID from the URI,
+                    // so we know which row to update. Selection will be "_id=?" and selection
+                    // arguments will be a String array containing the actual ID.
+                    selection = ItemContract.ItemEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+
+                    // With an expected version, only update the item nobody changed since
+                    String expectedVersion = uri.getQueryParameter(
+                            ItemContract.ItemEntry.QUERY_PARAMETER_EXPECTED_VERSION);
+                    if (expectedVersion != null) {
+                        selection += " AND " + ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION + "=?";
+                        selectionArgs = new String[] { selectionArgs[0],
+                                String.valueOf(parseLongParameter(uri,
+                                        ItemContract.ItemEntry.QUERY_PARAMETER_EXPECTED_VERSION,
+                                        expectedVersion)) };
+                    }
+                    rowsUpdated = updateItem(uri, contentValues, selection, selectionArgs);
+                    return rowsUpdated;
+                default:
+                    throw new IllegalArgumentException("Update is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.record(metricName(METRIC_UPDATE, match), start, rowsUpdated);
+        }
+    }
+
+    /**
+     * Update catalog in the database with the given content values. Apply the changes to the rows
+     * specified in the selection and selection arguments (which could be 0 or 1 or more items).
+     * Return the number of rows that were successfully updated.
+     */
+    private int updateItem(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        checkUpdateValues(values);
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Otherwise, get writeable database to update the data
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            rowsUpdated = updateLiveItems(database, values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If 1 or more rows were updated, then drop the cached results and notify all
+        // listeners that the data at the given URI has changed
+        if (rowsUpdated != 0) {
+            mQueryCache.invalidate();
+            notifyChange(uri);
+        }
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    /**
+     * Check the content values of an update, and fill in the price in cents of a new price tier
+     * that comes without one.
+     */
+    private static void checkUpdateValues(ContentValues values) {
+        // If the {@link ItemEntry#COLUMN_ITEM_NAME} key is present,
+        // check that the name value is not null.
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_NAME)) {
+            String name = values.getAsString(ItemContract.ItemEntry.COLUMN_ITEM_NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Item requires a name");
+            }
+        }
+
+        // If the {@link ItemEntry#COLUMN_ITEM_PRICE} key is present,
+        // check that the gender value is valid.
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_PRICE)) {
+            Integer price = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_PRICE);
+            if (price == null) {
+                throw new IllegalArgumentException("Item requires valid price");
+            }
+        }
+
+        // If the {@link ItemEntry#COLUMN_ITEM_PRICE_CENTS} key is present,
+        // check that the price is not negative. A new tier without a price in cents prices the
+        // item at the value of the tier, as for a new item, so the two never disagree.
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS)) {
+            checkPriceCents(values);
+        } else if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_PRICE)) {
+            values.put(ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS,
+                    ItemContract.ItemEntry.centsForPrice(
+                            values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_PRICE)));
+        }
+
+        // If the {@link ItemEntry#COLUMN_ITEM_AMOUNT} key is present,
+        // check that the weight value is valid.
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT)) {
+            // Check that the amount is greater than or equal to 0
+            Integer amount = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
+            if (amount != null && amount < 0) {
+                throw new IllegalArgumentException("Item requires valid amount");
+            }
+        }
+
+        checkReorderPoint(values);
+
+        // The version is stamped by the triggers; writing it would skip the stamp and defeat
+        // conditional updates
+        if (values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION)
+                || values.containsKey(ItemContract.ItemEntry.COLUMN_ITEM_UPDATED_AT)) {
+            throw new IllegalArgumentException("The change version can't be written");
+        }
+
+        // No need to check the brand, any value is valid (including null). The unique index
+        // refuses a sku another item already holds.
+    }
+
+    /**
+     * Write the checked values to the live items matching the selection, inside the caller's
+     * transaction. A new amount is journaled first against the amounts it replaces. Return the
+     * number of rows updated.
+     */
+    private static int updateLiveItems(SQLiteDatabase database, ContentValues values,
+                                       String selection, String[] selectionArgs) {
+        selection = DatabaseUtils.concatenateWhere(LIVE_SELECTION, selection);
+        Integer amount = values.getAsInteger(ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT);
+        if (amount != null) {
+            StockJournal.recordSetAmount(database, amount, selection, selectionArgs,
+                    ItemContract.MovementEntry.REASON_EDIT, System.currentTimeMillis());
+        }
+        return database.update(ItemContract.ItemEntry.TABLE_NAME, values, selection,
+                selectionArgs);
+    }
+
+    /**
+     * Update the given item only if its version is still the expected one, see
+     * {@link ItemContract#METHOD_UPDATE_ITEM}, and add the delta, if any, to its amount. The
+     * version is read, the values written and the delta added in one write transaction, so no
+     * other writer can come in between, and the version returned is the one this call left or
+     * found. If the delta is rejected the values are rolled back with it.
+     */
+    private Bundle updateItemIfVersion(long id, long expectedVersion, ContentValues values,
+                                       int delta, String reason) {
+        checkUpdateValues(values);
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        String[] idArgs = new String[] { String.valueOf(id) };
+        String readVersion = "SELECT " + ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION
+                + " FROM " + ItemContract.ItemEntry.TABLE_NAME + " WHERE "
+                + ItemContract.ItemEntry._ID + "=? AND " + LIVE_SELECTION;
+        Set<Long> crossed = new LinkedHashSet<>();
+        Bundle result = new Bundle();
+
+        // Leaving without marking the transaction successful rolls back whatever was written
+        database.beginTransaction();
+        try {
+            long version;
+            try {
+                version = DatabaseUtils.longForQuery(database, readVersion, idArgs);
+            } catch (SQLiteDoneException e) {
+                result.putInt(ItemContract.EXTRA_UPDATE_RESULT, ItemContract.UPDATE_NOT_FOUND);
+                return result;
+            }
+            result.putLong(ItemContract.EXTRA_VERSION, version);
+            if (version != expectedVersion) {
+                result.putInt(ItemContract.EXTRA_UPDATE_RESULT, ItemContract.UPDATE_CONFLICT);
+                return result;
+            }
+
+            if (values.size() > 0) {
+                updateLiveItems(database, values, ItemContract.ItemEntry._ID + "=?", idArgs);
+            }
+            if (delta != 0) {
+                int[] amounts = applyAdjustments(database, new long[] { id },
+                        new int[] { delta }, reason, crossed);
+                if (amounts[0] == ItemContract.AMOUNT_NOT_ADJUSTED) {
+                    result.putInt(ItemContract.EXTRA_UPDATE_RESULT,
+                            ItemContract.UPDATE_REJECTED);
+                    return result;
+                }
+                result.putInt(ItemContract.EXTRA_AMOUNT, amounts[0]);
+            }
+
+            result.putInt(ItemContract.EXTRA_UPDATE_RESULT, ItemContract.UPDATE_APPLIED);
+            result.putLong(ItemContract.EXTRA_VERSION,
+                    DatabaseUtils.longForQuery(database, readVersion, idArgs));
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        alertLowStock(crossed);
+        mQueryCache.invalidate();
+        notifyChange(ContentUris.withAppendedId(ItemContract.ItemEntry.CONTENT_URI, id));
+        return result;
+    }
+
+    /**
+     * Apply all of the given operations inside a single database transaction. Either every
+     * operation is committed or, if any of them fails, none of them are. Listeners are notified
+     * once per affected URI after the commit instead of once per operation.
+     *
+     * Yield points set with {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}
+     * are ignored: yielding would commit the work before them, let readers see half a batch and
+     * keep it even if a later operation fails. Callers that want very large writes to let
+     * others in split them into several batches.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Hold back notifications for this thread until the batch is committed
+        Set<Uri> pending = new LinkedHashSet<>();
+        mPendingNotifications.set(pending);
+
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mPendingNotifications.set(null);
+        }
+
+        // The batch is committed. Results cached by readers while it was running may
+        // predate the commit, so drop them, then notify every affected URI once.
+        if (!pending.isEmpty()) {
+            mQueryCache.invalidate();
+        }
+        dispatchNotifications(pending);
+
+        // Each operation was recorded on its own as well, this is the batch as a whole
+        mMetrics.record(METRIC_BATCH, start, batchRows(results));
+        return results;
+    }
+
+    /**
+     * Return the number of rows the operations of a batch touched: the count of each update or
+     * delete, and one for each insert that returned a URI.
+     */
+    private static long batchRows(ContentProviderResult[] results) {
+        long rows = 0;
+        for (ContentProviderResult result : results) {
+            if (result.count != null) {
+                rows += result.count;
+            } else if (result.uri != null) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        long start = System.nanoTime();
+        Bundle result = null;
+        try {
+            result = callMethod(method, arg, extras);
+            return result;
+        } finally {
+            mMetrics.record(METRIC_METHODS.contains(method) ? METRIC_CALL + method
+                    : METRIC_CALL + "unknown", start, callRows(method, result));
+        }
+    }
+
+    /**
+     * Return the number of rows a method call wrote, as read back from its result. As for
+     * queries, the rows of calls that only read aren't counted, nor are those of failed calls.
+     */
+    private static long callRows(String method, Bundle result) {
+        if (result == null) {
+            return 0;
+        }
+        if (ItemContract.METHOD_ADJUST_AMOUNT.equals(method)) {
+            return result.getInt(ItemContract.EXTRA_AMOUNT, ItemContract.AMOUNT_NOT_ADJUSTED)
+                    == ItemContract.AMOUNT_NOT_ADJUSTED ? 0 : 1;
+        } else if (ItemContract.METHOD_ADJUST_AMOUNTS.equals(method)) {
+            long rows = 0;
+            for (int amount : result.getIntArray(ItemContract.EXTRA_AMOUNTS)) {
+                if (amount != ItemContract.AMOUNT_NOT_ADJUSTED) {
+                    rows++;
+                }
+            }
+            return rows;
+        } else if (ItemContract.METHOD_UPDATE_ITEM.equals(method)) {
+            return result.getInt(ItemContract.EXTRA_UPDATE_RESULT)
+                    == ItemContract.UPDATE_APPLIED ? 1 : 0;
+        } else if (ItemContract.METHOD_IMPORT_CHUNK.equals(method)) {
+            return result.getInt(ItemContract.EXTRA_ACCEPTED);
+        } else if (ItemContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            return result.getInt(ItemContract.EXTRA_PURGED)
+                    + result.getInt(ItemContract.EXTRA_COMPACTED);
+        }
+        return 0;
+    }
+
+    /**
+     * Carry out a provider method call, see the METHOD constants of {@link ItemContract}.
+     */
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (ItemContract.METHOD_SET_NOTIFICATION_WINDOW.equals(method)) {
+            long windowMillis = extras == null ? 0
+                    : extras.getLong(ItemContract.EXTRA_WINDOW_MILLIS, 0);
+            if (windowMillis < 0) {
+                throw new IllegalArgumentException("Notification window can't be negative");
+            }
+            setNotificationWindow(windowMillis);
+            return null;
+        } else if (ItemContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(ItemContract.EXTRA_CACHE_HITS, mQueryCache.hits());
+            result.putLong(ItemContract.EXTRA_CACHE_MISSES, mQueryCache.misses());
+            result.putInt(ItemContract.EXTRA_CACHE_ROWS, mQueryCache.size());
+            result.putInt(ItemContract.EXTRA_CACHE_MAX_ROWS, mQueryCache.maxSize());
+            if (extras != null && extras.getBoolean(ItemContract.EXTRA_RESET)) {
+                mQueryCache.clear();
+            }
+            return result;
+        } else if (ItemContract.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            if (extras == null || !extras.containsKey(ItemContract.EXTRA_THRESHOLD_MILLIS)) {
+                throw new IllegalArgumentException("Slow-query threshold requires a threshold");
+            }
+            mSlowQueryLog.setThresholdMillis(extras.getLong(ItemContract.EXTRA_THRESHOLD_MILLIS));
+            return null;
+        } else if (ItemContract.METHOD_SLOW_QUERIES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putParcelableArrayList(ItemContract.EXTRA_SLOW_QUERIES, mSlowQueryLog.dump());
+            if (extras != null && extras.getBoolean(ItemContract.EXTRA_RESET)) {
+                mSlowQueryLog.clear();
+            }
+            return result;
+        } else if (ItemContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            if (extras == null || !extras.containsKey(ItemContract.EXTRA_PURGE_BEFORE)) {
+                throw new IllegalArgumentException("Maintenance requires a purge time");
+            }
+            return runMaintenance(extras.getLong(ItemContract.EXTRA_PURGE_BEFORE),
+                    extras.getLong(ItemContract.EXTRA_PURGE_MAX_VERSION, Long.MAX_VALUE),
+                    extras.getLong(ItemContract.EXTRA_COMPACT_BEFORE, Long.MIN_VALUE));
+        } else if (ItemContract.METHOD_CHECK_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putBoolean(ItemContract.EXTRA_STATS_REBUILT,
+                    checkStats(mDbHelper.getWritableDatabase()));
+            return result;
+        } else if (ItemContract.METHOD_METRICS.equals(method)) {
+            Bundle result = mMetrics.snapshot();
+            if (extras != null && extras.getBoolean(ItemContract.EXTRA_RESET)) {
+                mMetrics.reset();
+            }
+            return result;
+        } else if (ItemContract.METHOD_ADJUST_AMOUNT.equals(method)) {
+            if (extras == null || !extras.containsKey(ItemContract.EXTRA_ID)
+                    || !extras.containsKey(ItemContract.EXTRA_DELTA)) {
+                throw new IllegalArgumentException("Adjustment requires an item id and a delta");
+            }
+            int[] amounts = adjustAmounts(
+                    new long[] { extras.getLong(ItemContract.EXTRA_ID) },
+                    new int[] { extras.getInt(ItemContract.EXTRA_DELTA) },
+                    extras.getString(ItemContract.EXTRA_REASON,
+                            ItemContract.MovementEntry.REASON_ADJUSTMENT));
+            Bundle result = new Bundle();
+            result.putInt(ItemContract.EXTRA_AMOUNT, amounts[0]);
+            return result;
+        } else if (ItemContract.METHOD_ADJUST_AMOUNTS.equals(method)) {
+            long[] ids = extras == null ? null : extras.getLongArray(ItemContract.EXTRA_IDS);
+            int[] deltas = extras == null ? null : extras.getIntArray(ItemContract.EXTRA_DELTAS);
+            if (ids == null || deltas == null || ids.length != deltas.length) {
+                throw new IllegalArgumentException("Adjustments require as many deltas as ids");
+            }
+            Bundle result = new Bundle();
+            result.putIntArray(ItemContract.EXTRA_AMOUNTS, adjustAmounts(ids, deltas,
+                    extras.getString(ItemContract.EXTRA_REASON,
+                            ItemContract.MovementEntry.REASON_ADJUSTMENT)));
+            return result;
+        } else if (ItemContract.METHOD_UPDATE_ITEM.equals(method)) {
+            ContentValues values = extras == null ? null
+                    : (ContentValues) extras.getParcelable(ItemContract.EXTRA_VALUES);
+            int delta = extras == null ? 0 : extras.getInt(ItemContract.EXTRA_DELTA);
+            if (values == null) {
+                values = new ContentValues();
+            }
+            if ((values.size() == 0 && delta == 0) || !extras.containsKey(ItemContract.EXTRA_ID)
+                    || !extras.containsKey(ItemContract.EXTRA_EXPECTED_VERSION)) {
+                throw new IllegalArgumentException(
+                        "Conditional update requires an item id, a version and values");
+            }
+            return updateItemIfVersion(extras.getLong(ItemContract.EXTRA_ID),
+                    extras.getLong(ItemContract.EXTRA_EXPECTED_VERSION), values, delta,
+                    extras.getString(ItemContract.EXTRA_REASON,
+                            ItemContract.MovementEntry.REASON_ADJUSTMENT));
+        } else if (ItemContract.METHOD_STOCK_AT.equals(method)) {
+            long[] ids = extras == null ? null : extras.getLongArray(ItemContract.EXTRA_IDS);
+            if (ids == null || !extras.containsKey(ItemContract.EXTRA_TIMESTAMP)) {
+                throw new IllegalArgumentException("Stock query requires ids and a time");
+            }
+            Bundle result = new Bundle();
+            result.putIntArray(ItemContract.EXTRA_AMOUNTS, StockJournal.stockAt(
+                    mDbHelper.getReadableDatabase(), ids,
+                    extras.getLong(ItemContract.EXTRA_TIMESTAMP)));
+            return result;
+        } else if (ItemContract.METHOD_PRICE_HISTOGRAM.equals(method)) {
+            long bucketCents = extras == null ? 0 : extras.getLong(ItemContract.EXTRA_BUCKET_CENTS);
+            if (bucketCents <= 0) {
+                throw new IllegalArgumentException("Price histogram requires a bucket width");
+            }
+            return priceHistogram(bucketCents);
+        } else if (ItemContract.METHOD_RESOLVE_SKUS.equals(method)) {
+            String[] skus = extras == null ? null : extras.getStringArray(ItemContract.EXTRA_SKUS);
+            if (skus == null) {
+                throw new IllegalArgumentException("Resolving requires codes");
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(ItemContract.EXTRA_IDS, resolveSkus(skus));
+            return result;
+        } else if (ItemContract.METHOD_IMPORT_CHUNK.equals(method)) {
+            ArrayList<ContentValues> rows = extras == null ? null
+                    : extras.<ContentValues>getParcelableArrayList(ItemContract.EXTRA_ROWS);
+            if (arg == null || rows == null || !extras.containsKey(ItemContract.EXTRA_POSITION)) {
+                throw new IllegalArgumentException("Import chunk requires a source, rows and a position");
+            }
+            int accepted = importChunk(arg, rows.toArray(new ContentValues[rows.size()]),
+                    extras.getLong(ItemContract.EXTRA_POSITION));
+            Bundle result = new Bundle();
+            result.putInt(ItemContract.EXTRA_ACCEPTED, accepted);
+            result.putInt(ItemContract.EXTRA_REJECTED, rows.size() - accepted);
+            return result;
+        } else if (ItemContract.METHOD_GET_IMPORT_POSITION.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(ItemContract.EXTRA_POSITION, getImportPosition(arg));
+            return result;
+        } else if (ItemContract.METHOD_FINISH_IMPORT.equals(method)) {
+            mDbHelper.getWritableDatabase().delete(ItemContract.ImportEntry.TABLE_NAME,
+                    ItemContract.ImportEntry.COLUMN_SOURCE + "=?", new String[] { arg });
+            return null;
+        }
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+
+    /**
+     * Bucket the live items by price and value their stock, see
+     * {@link ItemContract#METHOD_PRICE_HISTOGRAM}. The price index holds every column involved,
+     * so this is a single scan of the index that never touches the table.
+     */
+    private Bundle priceHistogram(long bucketCents) {
+        // Get readable database
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        String priceCents = ItemContract.ItemEntry.COLUMN_ITEM_PRICE_CENTS;
+        Cursor cursor = database.rawQuery("SELECT " + priceCents + " / " + bucketCents + ", "
+                + "COUNT(*), "
+                + "SUM(" + priceCents + " * " + ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT + ") "
+                + "FROM " + ItemContract.ItemEntry.TABLE_NAME
+                + " INDEXED BY " + ItemDbHelper.PRICE_INDEX
+                + " WHERE " + LIVE_SELECTION
+                + " GROUP BY 1 ORDER BY 1", null);
+        long[] starts;
+        long[] counts;
+        long[] values;
+        long stockValue = 0;
+        try {
+            starts = new long[cursor.getCount()];
+            counts = new long[starts.length];
+            values = new long[starts.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                starts[i] = cursor.getLong(0) * bucketCents;
+                counts[i] = cursor.getLong(1);
+                values[i] = cursor.getLong(2);
+                stockValue += values[i];
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(ItemContract.EXTRA_BUCKET_STARTS, starts);
+        result.putLongArray(ItemContract.EXTRA_BUCKET_COUNTS, counts);
+        result.putLongArray(ItemContract.EXTRA_BUCKET_VALUES, values);
+        result.putLong(ItemContract.EXTRA_STOCK_VALUE_CENTS, stockValue);
+        return result;
+    }
+
+    /**
+     * Return the _id of the live item holding each of the given codes, or
+     * {@link ItemContract#SKU_NOT_FOUND} for codes no item holds. The distinct codes are looked
+     * up in the unique sku index by one {@code IN} query per {@link #SKU_CHUNK_SIZE} codes, each
+     * query a plain read that takes no transaction.
+     */
+    private long[] resolveSkus(String[] skus) {
+        // Get readable database
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        // Look every code up once, however often it was scanned
+        Map<String, Long> found = new HashMap<>();
+        List<String> codes = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(skus)));
+        codes.remove(null);
+
+        for (int from = 0; from < codes.size(); from += SKU_CHUNK_SIZE) {
+            List<String> chunk = codes.subList(from, Math.min(from + SKU_CHUNK_SIZE, codes.size()));
+            StringBuilder selection = new StringBuilder(ItemContract.ItemEntry.COLUMN_ITEM_SKU)
+                    .append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+
+            Cursor cursor = database.query(ItemContract.ItemEntry.TABLE_NAME,
+                    new String[] { ItemContract.ItemEntry.COLUMN_ITEM_SKU,
+                            ItemContract.ItemEntry._ID },
+                    DatabaseUtils.concatenateWhere(selection.toString(), LIVE_SELECTION),
+                    chunk.toArray(new String[chunk.size()]), null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    found.put(cursor.getString(0), cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        long[] ids = new long[skus.length];
+        for (int i = 0; i < skus.length; i++) {
+            Long id = skus[i] == null ? null : found.get(skus[i]);
+            ids[i] = id == null ? ItemContract.SKU_NOT_FOUND : id;
+        }
+        return ids;
+    }
+
+    /**
+     * Insert one chunk of an import and record how far into its source the import got, both in
+     * the same transaction. If the process dies, the recorded position therefore always matches
+     * the rows that were committed, and the import resumes without losing or repeating rows.
+     * Return the number of rows inserted.
+     */
+    private int importChunk(String source, ContentValues[] rows, long position) {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        ContentValues progress = new ContentValues();
+        progress.put(ItemContract.ImportEntry.COLUMN_SOURCE, source);
+        progress.put(ItemContract.ImportEntry.COLUMN_POSITION, position);
+
+        int accepted;
+        database.beginTransaction();
+        try {
+            accepted = insertItems(database, rows);
+            database.insertWithOnConflict(ItemContract.ImportEntry.TABLE_NAME, null, progress,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Drop the cached results and notify listeners once for the whole chunk
+        if (accepted != 0) {
+            mQueryCache.invalidate();
+            notifyChange(ItemContract.ItemEntry.CONTENT_URI);
+        }
+        return accepted;
+    }
+
+    /**
+     * Return the position recorded by the last committed chunk of an import from the given
+     * source, or 0 if there is no unfinished import from it.
+     */
+    private long getImportPosition(String source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Import position requires a source");
+        }
+        return DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT IFNULL(MAX(" + ItemContract.ImportEntry.COLUMN_POSITION + "), 0) FROM "
+                        + ItemContract.ImportEntry.TABLE_NAME + " WHERE "
+                        + ItemContract.ImportEntry.COLUMN_SOURCE + "=?",
+                new String[] { source });
+    }
+
+    /**
+     * Add each delta to the amount of the item with the matching id, all in one transaction.
+     * Each adjustment is a single UPDATE that only applies if the amount stays at or above zero,
+     * so there is no read-modify-write window for a concurrent adjustment to slip into.
+     * Return the new amount of every item, or {@link ItemContract#AMOUNT_NOT_ADJUSTED} for
+     * adjustments that were rejected.
+     *
+     * Items that an adjustment takes from above their reorder point to at or below it are
+     * handed to {@link LowStockAlertService} once the transaction commits. Whether an item
+     * crossed follows from its new amount and the delta, so only the crossing items are read.
+     *
+     * Every adjustment is journaled with the given reason in the same transaction.
+     */
+    private int[] adjustAmounts(long[] ids, int[] deltas, String reason) {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int[] amounts;
+        Set<Long> crossed = new LinkedHashSet<>();
+        database.beginTransaction();
+        try {
+            amounts = applyAdjustments(database, ids, deltas, reason, crossed);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        alertLowStock(crossed);
+
+        // Drop the cached results and notify listeners of every adjusted item
+        Set<Uri> changed = new LinkedHashSet<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (amounts[i] != ItemContract.AMOUNT_NOT_ADJUSTED) {
+                changed.add(ContentUris.withAppendedId(ItemContract.ItemEntry.CONTENT_URI, ids[i]));
+            }
+        }
+        if (!changed.isEmpty()) {
+            mQueryCache.invalidate();
+        }
+        notifyChanges(changed);
+
+        return amounts;
+    }
+
+    /**
+     * Apply and journal the adjustments inside the caller's transaction, see
+     * {@link #adjustAmounts}. The items that crossed their reorder point are added to crossed.
+     */
+    private static int[] applyAdjustments(SQLiteDatabase database, long[] ids, int[] deltas,
+                                          String reason, Set<Long> crossed) {
+        int[] amounts = new int[ids.length];
+
+        SQLiteStatement adjust = database.compileStatement("UPDATE "
+                + ItemContract.ItemEntry.TABLE_NAME + " SET "
+                + ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT + " = "
+                + ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT + " + ? WHERE "
+                + ItemContract.ItemEntry._ID + " = ? AND " + LIVE_SELECTION + " AND "
+                + ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT + " + ? >= 0");
+        SQLiteStatement readAmount = database.compileStatement("SELECT "
+                + ItemContract.ItemEntry.COLUMN_ITEM_AMOUNT + " FROM "
+                + ItemContract.ItemEntry.TABLE_NAME + " WHERE "
+                + ItemContract.ItemEntry._ID + " = ?");
+        SQLiteStatement readReorderPoint = database.compileStatement("SELECT "
+                + ItemContract.ItemEntry.COLUMN_ITEM_REORDER_POINT + " FROM "
+                + ItemContract.ItemEntry.TABLE_NAME + " WHERE "
+                + ItemContract.ItemEntry._ID + " = ?");
+        StockJournal journal = new StockJournal(database);
+        long now = System.currentTimeMillis();
+
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                adjust.bindLong(1, deltas[i]);
+                adjust.bindLong(2, ids[i]);
+                adjust.bindLong(3, deltas[i]);
+                if (adjust.executeUpdateDelete() == 0) {
+                    amounts[i] = ItemContract.AMOUNT_NOT_ADJUSTED;
+                    continue;
+                }
+
+                // Still inside the transaction, so this is the amount this adjustment produced
+                readAmount.bindLong(1, ids[i]);
+                amounts[i] = (int) readAmount.simpleQueryForLong();
+                journal.record(ids[i], deltas[i], reason, now);
+
+                // Only a decrease can cross the reorder point on the way down
+                if (deltas[i] < 0) {
+                    readReorderPoint.bindLong(1, ids[i]);
+                    long reorderPoint = readReorderPoint.simpleQueryForLong();
+                    if (amounts[i] <= reorderPoint && amounts[i] - deltas[i] > reorderPoint) {
+                        crossed.add(ids[i]);
+                    }
+                }
+            }
+        } finally {
+            adjust.close();
+            readAmount.close();
+            readReorderPoint.close();
+            journal.close();
+        }
+        return amounts;
+    }
+
+    /**
+     * Hand the items that just ran low to {@link LowStockAlertService}, off the caller's thread.
+     * Only called once the adjustments that crossed have committed.
+     */
+    private void alertLowStock(Set<Long> crossed) {
+        if (!crossed.isEmpty()) {
+            long[] lowIds = new long[crossed.size()];
+            int i = 0;
+            for (long id : crossed) {
+                lowIds[i++] = id;
+            }
+            LowStockAlertService.enqueue(getContext(), lowIds);
+        }
+    }
+
+    /**
+     * Set how long change notifications are collected before they are sent, see
+     * {@link ItemContract#METHOD_SET_NOTIFICATION_WINDOW}. Turning the window off sends anything
+     * that is still waiting right away.
+     */
+    private void setNotificationWindow(long windowMillis) {
+        synchronized (mWindowNotifications) {
+            mNotificationWindowMillis = windowMillis;
+        }
+        if (windowMillis == 0) {
+            mNotificationHandler.removeCallbacks(mFlushWindowNotifications);
+            mFlushWindowNotifications.run();
+        }
+    }
+
+    /**
+     * Notify listeners that the data at the given URI has changed. Inside {@link #applyBatch}
+     * the notification is deferred until the batch commits.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> uris = new LinkedHashSet<>();
+        uris.add(uri);
+        notifyChanges(uris);
+    }
+
+    /**
+     * Notify listeners that the data at each of the given URIs has changed. Inside
+     * {@link #applyBatch} the notifications are deferred until the batch commits.
+     */
+    private void notifyChanges(Set<Uri> uris) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.addAll(uris);
+        } else {
+            dispatchNotifications(uris);
+        }
+    }
+
+    /**
+     * Send all of the given deferred notifications and clear the set. While a notification
+     * window is open the notifications join the ones already waiting for it instead.
+     */
+    private void dispatchNotifications(Set<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+
+        synchronized (mWindowNotifications) {
+            if (mNotificationWindowMillis > 0) {
+                boolean scheduled = !mWindowNotifications.isEmpty();
+                mWindowNotifications.addAll(uris);
+                if (!scheduled) {
+                    mNotificationHandler.postDelayed(mFlushWindowNotifications,
+                            mNotificationWindowMillis);
+                }
+                uris.clear();
+                return;
+            }
+        }
+
+        Set<Uri> notified = coalesce(uris);
+        for (Uri uri : notified) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        mMetrics.countNotifications(notified.size());
+        uris.clear();
+    }
+
+    /**
+     * Sends the notifications collected during the notification window.
+     */
+    private final Runnable mFlushWindowNotifications = new Runnable() {
+        @Override
+        public void run() {
+            Set<Uri> uris;
+            synchronized (mWindowNotifications) {
+                uris = new LinkedHashSet<>(mWindowNotifications);
+                mWindowNotifications.clear();
+            }
+            Set<Uri> notified = coalesce(uris);
+            for (Uri uri : notified) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+            mMetrics.countNotifications(notified.size());
+        }
+    };
+
+    /**
+     * Purge the items deleted before the given time, fold the stock movements recorded before
+     * the given compaction time into snapshots, and give the freed space back to the file
+     * system. Every step runs in a transaction of its own, so the list never waits long.
+     */
+    private Bundle runMaintenance(long purgeBefore, long purgeMaxVersion, long compactBefore) {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long sizeBefore = databaseSize(database);
+
+        // Incremental vacuum has to be switched on before the file is laid out. New databases
+        // get it when they are created, see ItemDbHelper.onConfigure; databases that predate
+        // that need a single full VACUUM, the only step that holds the lock for long
+        if (DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            database.execSQL("VACUUM");
+        }
+
+        // Purge the old tombstones in small batches, found through the deleted_at index
+        SQLiteStatement purge = database.compileStatement("DELETE FROM "
+                + ItemContract.ItemEntry.TABLE_NAME + " WHERE " + ItemContract.ItemEntry._ID
+                + " IN (SELECT " + ItemContract.ItemEntry._ID + " FROM "
+                + ItemContract.ItemEntry.TABLE_NAME + " WHERE "
+                + ItemContract.ItemEntry.COLUMN_ITEM_DELETED_AT + " < ? AND "
+                + ItemContract.ItemEntry.COLUMN_ITEM_CHANGE_VERSION + " <= ? LIMIT "
+                + PURGE_BATCH_SIZE + ")");
+        int purged = 0;
+        try {
+            int batch;
+            do {
+                database.beginTransaction();
+                try {
+                    purge.bindLong(1, purgeBefore);
+                    purge.bindLong(2, purgeMaxVersion);
+                    batch = purge.executeUpdateDelete();
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                purged += batch;
+            } while (batch == PURGE_BATCH_SIZE);
+        } finally {
+            purge.close();
+        }
+
+        // Fold the old stock movements into snapshots, so their pages are released below too
+        int compacted = StockJournal.compact(database, compactBefore);
+
+        // Release the free pages a few at a time. The pragma frees one page per step of its
+        // statement, so it has to be read to the end rather than just executed.
+        long free = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        while (free > 0) {
+            Cursor cursor = database.rawQuery(
+                    "PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // Each row is one page released
+                }
+            } finally {
+                cursor.close();
+            }
+            long left = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+            if (left >= free) {
+                break;
+            }
+            free = left;
+        }
+
+        // Refresh the planner statistics one index at a time, each in its own short transaction
+        Cursor indexes = database.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index'"
+                + " AND tbl_name = ? AND sql IS NOT NULL",
+                new String[] { ItemContract.ItemEntry.TABLE_NAME });
+        try {
+            while (indexes.moveToNext()) {
+                database.execSQL("ANALYZE " + indexes.getString(0));
+            }
+        } finally {
+            indexes.close();
+        }
+
+        // Make sure the statistics still agree with the catalog
+        boolean statsRebuilt = checkStats(database);
+
+        long reclaimed = sizeBefore - databaseSize(database);
+        Log.i(LOG_TAG, "Maintenance purged " + purged + " deleted items, folded " + compacted
+                + " stock movements and reclaimed " + reclaimed + " bytes");
+
+        Bundle result = new Bundle();
+        result.putInt(ItemContract.EXTRA_PURGED, purged);
+        result.putLong(ItemContract.EXTRA_RECLAIMED_BYTES, reclaimed);
+        result.putInt(ItemContract.EXTRA_COMPACTED, compacted);
+        result.putBoolean(ItemContract.EXTRA_STATS_REBUILT, statsRebuilt);
+        return result;
+    }
+
+    /**
+     * Compare the statistics with the same totals computed from the catalog, and rebuild them
+     * if they differ. Empty buckets left behind by the triggers don't count as a difference.
+     * Both sides are compared by a single statement, which reads one state of the database
+     * without taking the write lock. Only if they differ is the write lock taken, and the
+     * comparison repeated under it before rebuilding, since the difference may have come from a
+     * write that landed meanwhile. Return whether the statistics had to be rebuilt.
+     */
+    private boolean checkStats(SQLiteDatabase database) {
+        String stored = "SELECT " + ItemContract.StatsEntry.COLUMN_DIMENSION + ", "
+                + ItemContract.StatsEntry.COLUMN_BUCKET + ", "
+                + ItemContract.StatsEntry.COLUMN_ITEMS + ", "
+                + ItemContract.StatsEntry.COLUMN_UNITS + ", "
+                + ItemContract.StatsEntry.COLUMN_VALUE_CENTS
+                + " FROM " + ItemContract.StatsEntry.TABLE_NAME + " WHERE "
+                + ItemContract.StatsEntry.COLUMN_DIMENSION + " = '"
+                + ItemContract.StatsEntry.DIMENSION_TOTAL + "' OR "
+                + ItemContract.StatsEntry.COLUMN_ITEMS + " != 0 OR "
+                + ItemContract.StatsEntry.COLUMN_UNITS + " != 0 OR "
+                + ItemContract.StatsEntry.COLUMN_VALUE_CENTS + " != 0";
+        String computed = "SELECT * FROM (" + ItemDbHelper.STATS_FROM_CATALOG + ")";
+        String compare = "SELECT (SELECT COUNT(*) FROM (" + stored + " EXCEPT " + computed
+                + ")) + (SELECT COUNT(*) FROM (" + computed + " EXCEPT " + stored + "))";
+
+        // The usual case: nothing drifted, and writers were never held up
+        if (DatabaseUtils.longForQuery(database, compare, null) == 0) {
+            return false;
+        }
+
+        database.beginTransaction();
+        try {
+            long differences = DatabaseUtils.longForQuery(database, compare, null);
+            if (differences > 0) {
+                Log.w(LOG_TAG, "Catalog statistics drifted in " + differences
+                        + " buckets, rebuilding them");
+                ItemDbHelper.rebuildStats(database);
+            }
+            database.setTransactionSuccessful();
+            return differences > 0;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Return the size of the database, in bytes.
+     */
+    private static long databaseSize(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(database, "PRAGMA page_size", null);
+    }
+
+    /**
+     * Return the name under which an operation on the URI with the given match is recorded.
+     */
+    private static String metricName(String operation, int match) {
+        switch (match) {
+            case CATALOG:
+                return operation + " " + ItemContract.PATH_ITEMS;
+            case CATALOG_ID:
+                return operation + " " + ItemContract.PATH_ITEMS + "/#";
+            case CATALOG_SEARCH:
+                return operation + " " + ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SEARCH;
+            case CATALOG_CHANGES:
+                return operation + " " + ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_CHANGES;
+            case CATALOG_SKU:
+                return operation + " " + ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SKU + "/*";
+            case CATALOG_STATS:
+                return operation + " " + ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_STATS;
+            case CATALOG_LOW_STOCK:
+                return operation + " " + ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_LOW_STOCK;
+            case CATALOG_ID_MOVEMENTS:
+                return operation + " " + ItemContract.PATH_ITEMS + "/#/" + ItemContract.PATH_MOVEMENTS;
+            default:
+                return operation + " unknown";
+        }
+    }
+
+    /**
+     * Reduce a set of changed URIs to the smallest set of notifications that reaches the same
+     * observers. A notification for the whole catalog already reaches the observers of every
+     * single item, so single items are dropped when the catalog is in the set, and once more
+     * than {@link #MAX_ITEM_NOTIFICATIONS} single items changed they are replaced by one
+     * notification for the whole catalog.
+     */
+    private static Set<Uri> coalesce(Set<Uri> uris) {
+        Set<Uri> itemUris = new LinkedHashSet<>();
+        Set<Uri> result = new LinkedHashSet<>();
+        for (Uri uri : uris) {
+            if (sUriMatcher.match(uri) == CATALOG_ID) {
+                itemUris.add(uri);
+            } else {
+                result.add(uri);
+            }
+        }
+
+        if (result.contains(ItemContract.ItemEntry.CONTENT_URI)
+                || itemUris.size() > MAX_ITEM_NOTIFICATIONS) {
+            result.add(ItemContract.ItemEntry.CONTENT_URI);
+        } else {
+            result.addAll(itemUris);
+        }
+        return result;
+    }
 
 }
@@ -0,0 +1,320 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single entry point for writes to the catalog, so they never run on the UI thread.
+ *
+ * Writes are queued and carried out in order by one dedicated writer thread. Writes that pile
+ * up while the writer is busy are merged and applied through {@link ContentResolver#applyBatch}
+ * in one shared transaction. The outcome of every write is posted back to the main thread
+ * through its {@link Callback}, and screens can follow how many writes are still pending
+ * through a {@link PendingWritesListener}.
+ */
+public final class ItemRepository {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ItemRepository.class.getSimpleName();
+
+    /** Largest number of queued writes merged into one transaction */
+    private static final int MAX_MERGED_WRITES = 500;
+
+    /**
+     * Callback for the outcome of a write, always called on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called once the write has been committed, or has failed.
+         *
+         * @param result the result of the write, or null if it failed
+         */
+        void onWriteFinished(ContentProviderResult result);
+    }
+
+    /**
+     * Callback for the outcome of a provider method call, always called on the main thread.
+     */
+    public interface CallCallback {
+        /**
+         * Called once the call has returned, or has failed.
+         *
+         * @param result the bundle returned by the call, or null if it failed or returned nothing
+         */
+        void onCallFinished(Bundle result);
+    }
+
+    /**
+     * Listener for the number of writes that are queued or running.
+     */
+    public interface PendingWritesListener {
+        /**
+         * Called on the main thread when it is registered and whenever the number changes.
+         *
+         * @param pendingWrites the number of writes that haven't finished yet
+         */
+        void onPendingWritesChanged(int pendingWrites);
+    }
+
+    private static ItemRepository sInstance;
+
+    /**
+     * Return the repository of the app, creating it on first use.
+     */
+    public static synchronized ItemRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ItemRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /** Resolver the writes go through */
+    private final ContentResolver mResolver;
+
+    /** Writes waiting for the writer thread, in the order they were requested */
+    private final BlockingQueue<Write> mQueue = new LinkedBlockingQueue<>();
+
+    /** Handler for posting results to the main thread */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Writes queued or running, counted down once their callback has run */
+    private final AtomicInteger mPendingWrites = new AtomicInteger();
+
+    /** Registered listeners for the pending writes, only touched on the main thread */
+    private final List<PendingWritesListener> mPendingWritesListeners = new ArrayList<>();
+
+    /** Tells the listeners the current number of pending writes, on the main thread */
+    private final Runnable mDispatchPendingWrites = new Runnable() {
+        @Override
+        public void run() {
+            int pendingWrites = mPendingWrites.get();
+            for (PendingWritesListener listener : new ArrayList<>(mPendingWritesListeners)) {
+                listener.onPendingWritesChanged(pendingWrites);
+            }
+        }
+    };
+
+    private ItemRepository(Context context) {
+        mResolver = context.getContentResolver();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "ItemRepository writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue the insertion of a new item. The result holds the URI of the new item.
+     */
+    public void insert(ContentValues values, Callback callback) {
+        enqueue(new Write(ContentProviderOperation.newInsert(ItemContract.ItemEntry.CONTENT_URI)
+                .withValues(values).build(), callback));
+    }
+
+    /**
+     * Queue an update of the items at the given URI. The result holds the number of rows updated.
+     */
+    public void update(Uri uri, ContentValues values, Callback callback) {
+        enqueue(new Write(ContentProviderOperation.newUpdate(uri)
+                .withValues(values).build(), callback));
+    }
+
+    /**
+     * Queue the deletion of the items at the given URI. The result holds the number of rows
+     * deleted.
+     */
+    public void delete(Uri uri, Callback callback) {
+        enqueue(new Write(ContentProviderOperation.newDelete(uri).build(), callback));
+    }
+
+    /**
+     * Queue a provider method call that writes, such as {@link ItemContract#METHOD_ADJUST_AMOUNT}.
+     * Calls are not merged with other writes, but run in order with them.
+     */
+    public void call(String method, Bundle extras, CallCallback callback) {
+        enqueue(new Write(method, extras, callback));
+    }
+
+    /**
+     * Register a listener for the number of pending writes. It is called right away with the
+     * current number. Only call on the main thread, and unregister the listener when its screen
+     * stops, so the repository doesn't hold on to the screen.
+     */
+    public void addPendingWritesListener(PendingWritesListener listener) {
+        mPendingWritesListeners.add(listener);
+        listener.onPendingWritesChanged(mPendingWrites.get());
+    }
+
+    /**
+     * Unregister a listener registered with {@link #addPendingWritesListener}. Only call on the
+     * main thread.
+     */
+    public void removePendingWritesListener(PendingWritesListener listener) {
+        mPendingWritesListeners.remove(listener);
+    }
+
+    private void enqueue(Write write) {
+        mPendingWrites.incrementAndGet();
+        mMainHandler.post(mDispatchPendingWrites);
+        mQueue.add(write);
+    }
+
+    /**
+     * Count a write as finished once its callback has run. Only called on the main thread.
+     */
+    private void finishPending() {
+        mPendingWrites.decrementAndGet();
+        mDispatchPendingWrites.run();
+    }
+
+    /**
+     * Loop of the writer thread: wait for a write, take every other write queued behind it and
+     * apply them together.
+     */
+    private void runWriter() {
+        List<Write> writes = new ArrayList<>();
+        while (true) {
+            try {
+                writes.add(mQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            mQueue.drainTo(writes, MAX_MERGED_WRITES - 1);
+
+            // Apply runs of operations as one batch each, with calls in between on their own
+            int start = 0;
+            for (int i = 0; i <= writes.size(); i++) {
+                if (i == writes.size() || writes.get(i).mOperation == null) {
+                    applyMerged(writes.subList(start, i));
+                    if (i < writes.size()) {
+                        applyCall(writes.get(i));
+                    }
+                    start = i + 1;
+                }
+            }
+            writes.clear();
+        }
+    }
+
+    /**
+     * Apply the given writes in one transaction. If the batch fails, one bad write shouldn't
+     * take the others down with it, so each write is retried on its own.
+     */
+    private void applyMerged(List<Write> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(writes.size());
+        for (Write write : writes) {
+            operations.add(write.mOperation);
+        }
+
+        try {
+            ContentProviderResult[] results =
+                    mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < writes.size(); i++) {
+                finish(writes.get(i), results[i]);
+            }
+            return;
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            if (writes.size() == 1) {
+                Log.e(LOG_TAG, "Write failed: " + writes.get(0).mOperation, e);
+                finish(writes.get(0), null);
+                return;
+            }
+        }
+
+        for (Write write : writes) {
+            applyMerged(Collections.singletonList(write));
+        }
+    }
+
+    /**
+     * Run a provider method call write.
+     */
+    private void applyCall(final Write write) {
+        Bundle result = null;
+        try {
+            result = mResolver.call(ItemContract.ItemEntry.CONTENT_URI,
+                    write.mMethod, null, write.mExtras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Call failed: " + write.mMethod, e);
+        }
+
+        final Bundle finalResult = result;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (write.mCallCallback != null) {
+                    write.mCallCallback.onCallFinished(finalResult);
+                }
+                finishPending();
+            }
+        });
+    }
+
+    /**
+     * Post the outcome of a write to its callback on the main thread, and count it as finished.
+     */
+    private void finish(final Write write, final ContentProviderResult result) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (write.mCallback != null) {
+                    write.mCallback.onWriteFinished(result);
+                }
+                finishPending();
+            }
+        });
+    }
+
+    /**
+     * A queued write: either a provider operation, which can be merged with others, or a
+     * provider method call.
+     */
+    private static final class Write {
+        final ContentProviderOperation mOperation;
+        final String mMethod;
+        final Bundle mExtras;
+        final Callback mCallback;
+        final CallCallback mCallCallback;
+
+        Write(ContentProviderOperation operation, Callback callback) {
+            mOperation = operation;
+            mMethod = null;
+            mExtras = null;
+            mCallback = callback;
+            mCallCallback = null;
+        }
+
+        Write(String method, Bundle extras, CallCallback callback) {
+            mOperation = null;
+            mMethod = method;
+            mExtras = extras;
+            mCallback = null;
+            mCallCallback = callback;
+        }
+    }
+}
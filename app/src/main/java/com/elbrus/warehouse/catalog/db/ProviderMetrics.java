@@ -0,0 +1,150 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.os.Bundle;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for {@link ItemProvider}.
+ *
+ * Every operation is recorded under a name such as "query items/#", made of the kind of
+ * operation and what it was applied to. Recording takes a few atomic increments and no locks,
+ * so it stays on in release builds. Latencies go into buckets of powers of two microseconds:
+ * bucket 0 counts operations under 1 us and bucket i those from 2^(i-1) us up to 2^i us.
+ */
+class ProviderMetrics {
+
+    /** Number of latency buckets, the last one also counts everything slower */
+    static final int BUCKETS = 26;
+
+    /** Statistics of every operation recorded so far, by name */
+    private final ConcurrentHashMap<String, Stat> mStats = new ConcurrentHashMap<>();
+
+    /** Number of change notifications sent to the content resolver */
+    private final AtomicLong mNotifications = new AtomicLong();
+
+    /**
+     * Record one operation.
+     *
+     * @param name       name of the operation
+     * @param startNanos value of {@link System#nanoTime()} when the operation started
+     * @param rows       number of rows the operation touched
+     */
+    void record(String name, long startNanos, long rows) {
+        long nanos = System.nanoTime() - startNanos;
+        Stat stat = mStats.get(name);
+        if (stat == null) {
+            stat = new Stat();
+            Stat raced = mStats.putIfAbsent(name, stat);
+            if (raced != null) {
+                stat = raced;
+            }
+        }
+        stat.record(nanos, rows);
+    }
+
+    /**
+     * Record that the given number of change notifications were sent.
+     */
+    void countNotifications(int count) {
+        mNotifications.addAndGet(count);
+    }
+
+    /**
+     * Return a snapshot of every statistic. Each operation has a bundle of its own, under its
+     * name, holding the keys listed in {@link ItemContract#METHOD_METRICS}.
+     */
+    Bundle snapshot() {
+        Bundle result = new Bundle();
+        result.putLong(ItemContract.EXTRA_NOTIFICATIONS, mNotifications.get());
+        for (Map.Entry<String, Stat> entry : mStats.entrySet()) {
+            result.putBundle(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset() {
+        mStats.clear();
+        mNotifications.set(0);
+    }
+
+    /**
+     * Return the latency bucket of the given duration.
+     */
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        // 0 for under 1 us, otherwise one more than the index of the highest bit set
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Return the upper bound, in microseconds, of the given latency bucket.
+     */
+    static long upperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Statistics of one operation.
+     */
+    private static final class Stat {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mRows = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, long rows) {
+            mCount.incrementAndGet();
+            mRows.addAndGet(rows);
+            mTotalNanos.addAndGet(nanos);
+            mBuckets.incrementAndGet(bucketOf(nanos));
+
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+
+        Bundle snapshot() {
+            long[] histogram = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = mBuckets.get(i);
+                count += histogram[i];
+            }
+
+            Bundle result = new Bundle();
+            result.putLong(ItemContract.EXTRA_METRIC_COUNT, mCount.get());
+            result.putLong(ItemContract.EXTRA_METRIC_ROWS, mRows.get());
+            result.putLong(ItemContract.EXTRA_METRIC_TOTAL_MICROS, mTotalNanos.get() / 1000);
+            result.putLong(ItemContract.EXTRA_METRIC_MAX_MICROS, mMaxNanos.get() / 1000);
+            result.putLong(ItemContract.EXTRA_METRIC_P50_MICROS, percentile(histogram, count, 0.5));
+            result.putLong(ItemContract.EXTRA_METRIC_P99_MICROS, percentile(histogram, count, 0.99));
+            result.putLongArray(ItemContract.EXTRA_METRIC_HISTOGRAM, histogram);
+            return result;
+        }
+
+        /**
+         * Return the upper bound of the bucket holding the given percentile, in microseconds.
+         */
+        private static long percentile(long[] histogram, long count, double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBoundMicros(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
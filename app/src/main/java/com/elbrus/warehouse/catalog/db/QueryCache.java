@@ -0,0 +1,232 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of query results for {@link ItemProvider}.
+ *
+ * Results are copied out of their cursor and handed back as a fresh {@link MatrixCursor} on
+ * every hit, so each caller gets a cursor of its own. Every entry is stamped with the write
+ * generation that was current when its query started; any write bumps the generation, which
+ * turns every older entry into a miss. The cache is bounded by the total number of rows held,
+ * and the least recently used entries are evicted first.
+ */
+class QueryCache {
+
+    /** Largest result, in rows, that is worth copying into the cache */
+    private static final int MAX_ROWS_PER_ENTRY = 500;
+
+    /** Results held by the cache, bounded by their total number of rows */
+    private final LruCache<Key, Entry> mEntries;
+
+    /** Bumped by every write, entries stamped with an older generation are stale */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    /** Number of lookups answered from the cache */
+    private final AtomicLong mHits = new AtomicLong();
+
+    /** Number of lookups that had to go to the database */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Constructs a new {@link QueryCache}.
+     *
+     * @param maxRows total number of rows the cache may hold
+     */
+    QueryCache(int maxRows) {
+        mEntries = new LruCache<Key, Entry>(maxRows) {
+            @Override
+            protected int sizeOf(Key key, Entry entry) {
+                // Count empty results as one row so they still take up room
+                return Math.max(1, entry.mRows.length);
+            }
+        };
+    }
+
+    /**
+     * Return the generation to stamp the result of a query that is about to start.
+     */
+    long generation() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Mark every cached result as stale. Called after each write to the catalog.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Return a new cursor over the cached result of the given query, or null if there is no
+     * up-to-date result for it.
+     */
+    Cursor get(Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mGeneration != mGeneration.get()) {
+            if (entry != null) {
+                mEntries.remove(key);
+            }
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.newCursor();
+    }
+
+    /**
+     * Cache the result of the given query, if it is small enough, and return a cursor over it
+     * to hand to the caller in place of the given one.
+     *
+     * @param generation the generation returned by {@link #generation()} before the query ran
+     */
+    Cursor put(Key key, Cursor cursor, long generation) {
+        int count = cursor.getCount();
+        if (count > MAX_ROWS_PER_ENTRY) {
+            return cursor;
+        }
+
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[count][];
+        try {
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                Object[] values = new Object[columns.length];
+                for (int column = 0; column < columns.length; column++) {
+                    values[column] = readValue(cursor, column);
+                }
+                rows[row] = values;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Entry entry = new Entry(columns, rows, generation);
+        mEntries.put(key, entry);
+        return entry.newCursor();
+    }
+
+    /** Return the number of lookups answered from the cache */
+    long hits() {
+        return mHits.get();
+    }
+
+    /** Return the number of lookups that had to go to the database */
+    long misses() {
+        return mMisses.get();
+    }
+
+    /** Return the number of rows currently held by the cache */
+    int size() {
+        return mEntries.size();
+    }
+
+    /** Return the number of rows the cache may hold */
+    int maxSize() {
+        return mEntries.maxSize();
+    }
+
+    /**
+     * Drop every cached result and reset the hit and miss counters.
+     */
+    void clear() {
+        mEntries.evictAll();
+        mHits.set(0);
+        mMisses.set(0);
+    }
+
+    /**
+     * Read the value of the given column in the current row, keeping its type.
+     */
+    private static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * Everything that identifies a query: the URI and all the arguments passed with it.
+     */
+    static final class Key {
+        private final String mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final int mHashCode;
+
+        Key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+            mUri = uri.toString();
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mHashCode = Arrays.hashCode(new Object[] { mUri, Arrays.hashCode(projection),
+                    selection, Arrays.hashCode(selectionArgs), sortOrder });
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && equal(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * A cached result: its column names, a copy of its rows and the generation it belongs to.
+     */
+    private static final class Entry {
+        final String[] mColumns;
+        final Object[][] mRows;
+        final long mGeneration;
+
+        Entry(String[] columns, Object[][] rows, long generation) {
+            mColumns = columns;
+            mRows = rows;
+            mGeneration = generation;
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(mColumns, mRows.length);
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+
+/**
+ * Bounded log of the queries of {@link ItemProvider} that took longer than a threshold.
+ *
+ * Each entry keeps the SQL, its bound arguments, how long it took and the query plan SQLite
+ * chose for it, so a missing index shows up as a SCAN in the plan. Once the log is full, every
+ * new entry replaces the oldest one.
+ */
+class SlowQueryLog {
+
+    /** Threshold used until another one is set */
+    static final long DEFAULT_THRESHOLD_MILLIS = 100;
+
+    /** Entries in the order they were added, wrapping around at the end of the array */
+    private final Entry[] mEntries;
+
+    /** Index the next entry goes to */
+    private int mNext;
+
+    /** Number of entries held, at most the length of {@link #mEntries} */
+    private int mSize;
+
+    /** Queries that take at least this long are logged, negative to log none */
+    private volatile long mThresholdNanos = DEFAULT_THRESHOLD_MILLIS * 1000000;
+
+    /**
+     * Constructs a new {@link SlowQueryLog}.
+     *
+     * @param capacity number of entries kept
+     */
+    SlowQueryLog(int capacity) {
+        mEntries = new Entry[capacity];
+    }
+
+    /**
+     * Set the threshold, in milliseconds, from which queries are logged. 0 logs every query,
+     * a negative threshold none.
+     */
+    void setThresholdMillis(long millis) {
+        mThresholdNanos = millis < 0 ? -1 : millis * 1000000;
+    }
+
+    /**
+     * Return whether a query that took the given time should be logged.
+     */
+    boolean isSlow(long nanos) {
+        long threshold = mThresholdNanos;
+        return threshold >= 0 && nanos >= threshold;
+    }
+
+    /**
+     * Add a slow query to the log.
+     *
+     * @param plan the EXPLAIN QUERY PLAN output, one step per line
+     */
+    synchronized void add(String sql, String[] args, long nanos, String plan) {
+        mEntries[mNext] = new Entry(sql, args, nanos, plan, System.currentTimeMillis());
+        mNext = (mNext + 1) % mEntries.length;
+        mSize = Math.min(mSize + 1, mEntries.length);
+    }
+
+    /**
+     * Return every entry of the log as a bundle, oldest first, holding the keys listed in
+     * {@link ItemContract#METHOD_SLOW_QUERIES}.
+     */
+    synchronized ArrayList<Bundle> dump() {
+        ArrayList<Bundle> result = new ArrayList<>(mSize);
+        int first = (mNext - mSize + mEntries.length) % mEntries.length;
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = mEntries[(first + i) % mEntries.length];
+            Bundle bundle = new Bundle();
+            bundle.putString(ItemContract.EXTRA_SQL, entry.mSql);
+            bundle.putStringArray(ItemContract.EXTRA_SQL_ARGS, entry.mArgs);
+            bundle.putLong(ItemContract.EXTRA_ELAPSED_MICROS, entry.mNanos / 1000);
+            bundle.putString(ItemContract.EXTRA_QUERY_PLAN, entry.mPlan);
+            bundle.putLong(ItemContract.EXTRA_TIMESTAMP, entry.mTimestamp);
+            result.add(bundle);
+        }
+        return result;
+    }
+
+    /**
+     * Drop every entry.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = null;
+        }
+        mNext = 0;
+        mSize = 0;
+    }
+
+    /**
+     * A logged query.
+     */
+    private static final class Entry {
+        final String mSql;
+        final String[] mArgs;
+        final long mNanos;
+        final String mPlan;
+        final long mTimestamp;
+
+        Entry(String sql, String[] args, long nanos, String plan, long timestamp) {
+            mSql = sql;
+            mArgs = args;
+            mNanos = nanos;
+            mPlan = plan;
+            mTimestamp = timestamp;
+        }
+    }
+}
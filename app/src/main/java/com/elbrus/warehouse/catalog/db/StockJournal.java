@@ -0,0 +1,180 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+import com.elbrus.warehouse.catalog.db.ItemContract.MovementEntry;
+import com.elbrus.warehouse.catalog.db.ItemContract.SnapshotEntry;
+
+/**
+ * Append-only journal of the stock movements of {@link ItemProvider}, and the snapshots it is
+ * compacted into.
+ *
+ * Movements are written with the caller's transaction open, so they commit or roll back
+ * together with the change of amount they record. Compaction folds the oldest movements into
+ * one snapshot per item, so the journal only holds a recent tail, and the amount of an item at
+ * any time since its snapshot is the snapshot plus the movements that follow it up to then.
+ */
+final class StockJournal {
+
+    /** Movements folded per compaction transaction */
+    private static final int COMPACT_BATCH_SIZE = 5000;
+
+    private final SQLiteStatement mAppend;
+
+    /**
+     * Constructs a new {@link StockJournal} appending to the given database. Close it once the
+     * movements are recorded.
+     */
+    StockJournal(SQLiteDatabase database) {
+        mAppend = database.compileStatement("INSERT INTO " + MovementEntry.TABLE_NAME + " ("
+                + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry.COLUMN_DELTA + ", "
+                + MovementEntry.COLUMN_REASON + ", " + MovementEntry.COLUMN_CREATED_AT
+                + ") VALUES (?, ?, ?, ?)");
+    }
+
+    /**
+     * Record that the amount of the given item changed by the given delta. A zero delta
+     * records nothing.
+     */
+    void record(long itemId, long delta, String reason, long timeMillis) {
+        if (delta == 0) {
+            return;
+        }
+        mAppend.bindLong(1, itemId);
+        mAppend.bindLong(2, delta);
+        if (reason == null) {
+            mAppend.bindNull(3);
+        } else {
+            mAppend.bindString(3, reason);
+        }
+        mAppend.bindLong(4, timeMillis);
+        mAppend.executeInsert();
+    }
+
+    void close() {
+        mAppend.close();
+    }
+
+    /**
+     * Record that every item matching the selection is about to have its amount set to the
+     * given amount, with one statement. Call it right before the update, in the same
+     * transaction, so the movements are computed from the amounts the update replaces.
+     */
+    static void recordSetAmount(SQLiteDatabase database, int amount, String selection,
+                                String[] selectionArgs, String reason, long timeMillis) {
+        String sql = "INSERT INTO " + MovementEntry.TABLE_NAME + " ("
+                + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry.COLUMN_DELTA + ", "
+                + MovementEntry.COLUMN_REASON + ", " + MovementEntry.COLUMN_CREATED_AT
+                + ") SELECT " + ItemEntry._ID + ", " + amount + " - "
+                + ItemEntry.COLUMN_ITEM_AMOUNT + ", ?, ? FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + DatabaseUtils.concatenateWhere(
+                        ItemEntry.COLUMN_ITEM_AMOUNT + " != " + amount, selection);
+        Object[] args = new Object[2 + (selectionArgs == null ? 0 : selectionArgs.length)];
+        args[0] = reason;
+        args[1] = timeMillis;
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, args, 2, selectionArgs.length);
+        }
+        database.execSQL(sql, args);
+    }
+
+    /**
+     * Fold every movement recorded before the given time into the snapshots of their items,
+     * a batch at a time, each batch in its own transaction. Snapshots of items that are no
+     * longer in the catalog are dropped. Return the number of movements folded.
+     */
+    static int compact(SQLiteDatabase database, long beforeMillis) {
+        // Movements are folded in _id order, so each snapshot is followed by exactly the
+        // movements with a greater _id. Everything up to the last movement older than the
+        // cutoff is folded, even if a clock change put something younger in between.
+        long end = DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX("
+                + MovementEntry._ID + "), 0) FROM " + MovementEntry.TABLE_NAME + " WHERE "
+                + MovementEntry.COLUMN_CREATED_AT + " < ?",
+                new String[] { String.valueOf(beforeMillis) });
+
+        String snapshot = "(SELECT %s FROM " + SnapshotEntry.TABLE_NAME + " WHERE "
+                + SnapshotEntry.COLUMN_ITEM_ID + " = m." + MovementEntry.COLUMN_ITEM_ID + ")";
+        SQLiteStatement batchEnd = database.compileStatement("SELECT IFNULL(MAX("
+                + MovementEntry._ID + "), 0) FROM (SELECT " + MovementEntry._ID + " FROM "
+                + MovementEntry.TABLE_NAME + " WHERE " + MovementEntry._ID + " <= ? ORDER BY "
+                + MovementEntry._ID + " LIMIT " + COMPACT_BATCH_SIZE + ")");
+        SQLiteStatement fold = database.compileStatement("INSERT OR REPLACE INTO "
+                + SnapshotEntry.TABLE_NAME + " (" + SnapshotEntry.COLUMN_ITEM_ID + ", "
+                + SnapshotEntry.COLUMN_AMOUNT + ", " + SnapshotEntry.COLUMN_TAKEN_AT + ", "
+                + SnapshotEntry.COLUMN_LAST_MOVEMENT + ") SELECT m." + MovementEntry.COLUMN_ITEM_ID
+                + ", IFNULL(" + String.format(snapshot, SnapshotEntry.COLUMN_AMOUNT) + ", 0) + SUM(m."
+                + MovementEntry.COLUMN_DELTA + "), MAX(MAX(m." + MovementEntry.COLUMN_CREATED_AT
+                + "), IFNULL(" + String.format(snapshot, SnapshotEntry.COLUMN_TAKEN_AT) + ", 0)), "
+                + "MAX(m." + MovementEntry._ID + ") FROM " + MovementEntry.TABLE_NAME + " m WHERE m."
+                + MovementEntry._ID + " <= ? GROUP BY m." + MovementEntry.COLUMN_ITEM_ID);
+        SQLiteStatement delete = database.compileStatement("DELETE FROM "
+                + MovementEntry.TABLE_NAME + " WHERE " + MovementEntry._ID + " <= ?");
+
+        int folded = 0;
+        try {
+            while (true) {
+                database.beginTransaction();
+                try {
+                    batchEnd.bindLong(1, end);
+                    long last = batchEnd.simpleQueryForLong();
+                    if (last == 0) {
+                        database.setTransactionSuccessful();
+                        break;
+                    }
+                    fold.bindLong(1, last);
+                    fold.execute();
+                    delete.bindLong(1, last);
+                    folded += delete.executeUpdateDelete();
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        } finally {
+            batchEnd.close();
+            fold.close();
+            delete.close();
+        }
+
+        database.execSQL("DELETE FROM " + SnapshotEntry.TABLE_NAME + " WHERE "
+                + SnapshotEntry.COLUMN_ITEM_ID + " NOT IN (SELECT " + ItemEntry._ID + " FROM "
+                + ItemEntry.TABLE_NAME + ")");
+        return folded;
+    }
+
+    /**
+     * Return the amount of each of the given items at the given time, or
+     * {@link ItemContract#STOCK_NOT_AVAILABLE} if the snapshot of the item is younger than
+     * that. Each item is read by a single statement that joins its snapshot to the sum of the
+     * movements after it, so a fold running meanwhile can never be seen half done. The reads
+     * take no transaction and never hold up writers.
+     */
+    static int[] stockAt(SQLiteDatabase database, long[] ids, long timeMillis) {
+        int[] amounts = new int[ids.length];
+        // ?1 is the item, ?2 the time and ?3 the result for a snapshot younger than the time
+        SQLiteStatement stock = database.compileStatement("SELECT CASE WHEN s."
+                + SnapshotEntry.COLUMN_TAKEN_AT + " > ?2 THEN ?3 ELSE IFNULL(s."
+                + SnapshotEntry.COLUMN_AMOUNT + ", 0) + (SELECT IFNULL(SUM("
+                + MovementEntry.COLUMN_DELTA + "), 0) FROM " + MovementEntry.TABLE_NAME
+                + " WHERE " + MovementEntry.COLUMN_ITEM_ID + " = ?1 AND "
+                + MovementEntry._ID + " > IFNULL(s." + SnapshotEntry.COLUMN_LAST_MOVEMENT
+                + ", 0) AND " + MovementEntry.COLUMN_CREATED_AT + " <= ?2) END"
+                + " FROM (SELECT ?1 AS item) LEFT JOIN " + SnapshotEntry.TABLE_NAME + " s ON s."
+                + SnapshotEntry.COLUMN_ITEM_ID + " = item");
+
+        try {
+            stock.bindLong(2, timeMillis);
+            stock.bindLong(3, ItemContract.STOCK_NOT_AVAILABLE);
+            for (int i = 0; i < ids.length; i++) {
+                stock.bindLong(1, ids[i]);
+                amounts[i] = (int) stock.simpleQueryForLong();
+            }
+        } finally {
+            stock.close();
+        }
+        return amounts;
+    }
+}
@@ -0,0 +1,457 @@
+package com.elbrus.warehouse.catalog.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.elbrus.warehouse.catalog.db.ItemContract;
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mirrors the catalog to the back-office server and brings back the edits made there.
+ *
+ * Only changes are exchanged, so a sync costs O(changes) rather than O(catalog):
+ * <ul>
+ * <li>Push: the items changed since the last push, deleted ones included, are read from
+ * {@link ItemEntry#CONTENT_CHANGES_URI} and posted to {@code <server>/items} in batches of
+ * {@link #BATCH_SIZE}, as {@code {"items": [...]}} with every column of each item.</li>
+ * <li>Pull: {@code <server>/changes?since=<version>&limit=<n>} returns
+ * {@code {"items": [...], "version": <n>}}, the items edited on the server after the given
+ * server version, keyed by _id, and the server version they bring the device up to. They are
+ * applied in one batch per page. Items the device doesn't have are inserted. Edits the
+ * catalog refuses, such as a sku another item already holds, an edit of an item deleted on
+ * the device, or a new item missing its name, are skipped and counted in
+ * {@link Result#skipped}, so one bad edit can't hold back the ones after it.</li>
+ * </ul>
+ * The versions reached in each direction are only saved once a batch has been accepted, so an
+ * interrupted sync resends at most one batch. Applying pulled edits gives the items new change
+ * versions like any other write; when no local change was waiting to be pushed, the pushed
+ * version is moved past them so they aren't sent back to the server they came from.
+ *
+ * The app itself doesn't know a back-office server, so nothing in it calls {@link #sync()} yet:
+ * whoever deploys it against a server runs the sync from a background job of their own.
+ */
+public final class CatalogSyncClient {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogSyncClient.class.getSimpleName();
+
+    /** Items per request in either direction */
+    static final int BATCH_SIZE = 500;
+
+    /** Preferences holding the versions reached */
+    private static final String PREFERENCES = "catalog_sync";
+    private static final String KEY_PUSHED_VERSION = "pushed_version";
+    private static final String KEY_PULLED_VERSION = "pulled_version";
+
+    /**
+     * Set once the catalog has been pushed again from the start since change versions come from
+     * a counter of their own. Before that, purging the deleted item with the highest version
+     * made later changes reuse versions already pushed past, and those changes were never sent.
+     */
+    private static final String KEY_VERSIONS_REPAIRED = "versions_repaired";
+
+    /** Columns sent to the server and accepted from it */
+    private static final String[] PUSHED_COLUMNS = {
+            ItemEntry._ID,
+            ItemEntry.COLUMN_ITEM_SKU,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_BRAND,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_PRICE_CENTS,
+            ItemEntry.COLUMN_ITEM_AMOUNT,
+            ItemEntry.COLUMN_ITEM_REORDER_POINT,
+            ItemEntry.COLUMN_ITEM_DELETED_AT,
+            ItemEntry.COLUMN_ITEM_UPDATED_AT,
+            ItemEntry.COLUMN_ITEM_CHANGE_VERSION };
+    private static final String[] PULLED_COLUMNS = {
+            ItemEntry.COLUMN_ITEM_SKU,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_BRAND,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_PRICE_CENTS,
+            ItemEntry.COLUMN_ITEM_AMOUNT,
+            ItemEntry.COLUMN_ITEM_REORDER_POINT };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Outcome of a sync.
+     */
+    public static final class Result {
+        /** Number of items sent to the server */
+        public int pushed;
+        /** Number of server edits applied to the catalog */
+        public int pulled;
+        /** Number of server edits the catalog refused */
+        public int skipped;
+
+        @Override
+        public String toString() {
+            return pushed + " pushed, " + pulled + " pulled, " + skipped + " skipped";
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+    private final URL mServer;
+
+    /**
+     * Constructs a new {@link CatalogSyncClient}.
+     *
+     * @param server base URL of the back-office server
+     */
+    public CatalogSyncClient(Context context, URL server) {
+        mResolver = context.getContentResolver();
+        mPreferences = getPreferences(context);
+        mServer = server;
+    }
+
+    /**
+     * Return the change version up to which the catalog has been pushed, or -1 if it has never
+     * been synced. Deleted items with a later version must be kept until they are pushed.
+     */
+    public static long getPushedVersion(Context context) {
+        return getPreferences(context).getLong(KEY_PUSHED_VERSION, -1);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Push the local changes, then pull the server edits. Blocks on the network, so it must not
+     * run on the main thread.
+     */
+    public Result sync() throws IOException {
+        Result result = new Result();
+        result.pushed = push();
+        pull(result);
+        Log.i(LOG_TAG, "Synced with " + mServer + ": " + result);
+        return result;
+    }
+
+    /**
+     * Push every item changed since the last push. Return the number of items pushed.
+     */
+    private int push() throws IOException {
+        // Send everything once more if changes may have been skipped, see KEY_VERSIONS_REPAIRED.
+        // Maintenance keeps every deleted item until the resend has reached it.
+        if (!mPreferences.getBoolean(KEY_VERSIONS_REPAIRED, false)) {
+            SharedPreferences.Editor editor = mPreferences.edit();
+            if (mPreferences.getLong(KEY_PUSHED_VERSION, -1) > 0) {
+                editor.putLong(KEY_PUSHED_VERSION, 0);
+            }
+            editor.putBoolean(KEY_VERSIONS_REPAIRED, true).apply();
+        }
+
+        int pushed = 0;
+        long version = Math.max(0, mPreferences.getLong(KEY_PUSHED_VERSION, 0));
+        while (true) {
+            Uri changes = ItemEntry.CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(ItemEntry.QUERY_PARAMETER_SINCE, String.valueOf(version))
+                    .appendQueryParameter(ItemEntry.QUERY_PARAMETER_LIMIT, String.valueOf(BATCH_SIZE))
+                    .build();
+            JSONArray items = new JSONArray();
+            long lastVersion = version;
+            Cursor cursor = mResolver.query(changes, PUSHED_COLUMNS, null, null, null);
+            try {
+                int versionColumn = cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_CHANGE_VERSION);
+                while (cursor.moveToNext()) {
+                    items.put(toJson(cursor));
+                    lastVersion = cursor.getLong(versionColumn);
+                }
+            } catch (JSONException e) {
+                throw new IOException("Cannot encode item", e);
+            } finally {
+                cursor.close();
+            }
+            if (items.length() == 0) {
+                // Record that a sync happened even if there was nothing to push
+                mPreferences.edit().putLong(KEY_PUSHED_VERSION, version).apply();
+                return pushed;
+            }
+
+            try {
+                request("POST", new URL(mServer, "items"),
+                        new JSONObject().put("items", items));
+            } catch (JSONException e) {
+                throw new IOException("Cannot encode items", e);
+            }
+
+            pushed += items.length();
+            version = lastVersion;
+            mPreferences.edit().putLong(KEY_PUSHED_VERSION, version).apply();
+            if (items.length() < BATCH_SIZE) {
+                return pushed;
+            }
+        }
+    }
+
+    /**
+     * Pull and apply every server edit made since the last pull, counting the edits applied and
+     * skipped in the given result.
+     */
+    private void pull(Result result) throws IOException {
+        long version = mPreferences.getLong(KEY_PULLED_VERSION, 0);
+        while (true) {
+            // Whether the pushed version can be moved past the changes this batch makes
+            long pushedVersion = mPreferences.getLong(KEY_PUSHED_VERSION, -1);
+            boolean nothingPending = pushedVersion >= 0
+                    && changesSince(pushedVersion, 1).isEmpty();
+
+            JSONObject response = request("GET", new URL(mServer,
+                    "changes?since=" + version + "&limit=" + BATCH_SIZE), null);
+            try {
+                JSONArray items = response.getJSONArray("items");
+                long[] ids = new long[items.length()];
+                ContentValues[] edits = new ContentValues[items.length()];
+                for (int i = 0; i < items.length(); i++) {
+                    JSONObject item = items.getJSONObject(i);
+                    ids[i] = item.getLong(ItemEntry._ID);
+                    edits[i] = new ContentValues();
+                    for (String column : PULLED_COLUMNS) {
+                        if (item.has(column)) {
+                            putValue(edits[i], column, item.isNull(column) ? null : item.get(column));
+                        }
+                    }
+                }
+
+                // Items the device doesn't have yet are inserted under the server's _id. One
+                // that was deleted here still has its row, so the insert is refused and the
+                // deletion wins; it reaches the server with the next push.
+                int[] updated = applyUpdates(ids, edits);
+                for (int i = 0; i < ids.length; i++) {
+                    if (updated[i] == 0) {
+                        edits[i].put(ItemEntry._ID, ids[i]);
+                        updated[i] = insert(edits[i]) ? 1 : -1;
+                    }
+                    if (updated[i] > 0) {
+                        result.pulled++;
+                    } else {
+                        Log.w(LOG_TAG, "Skipped server edit of item " + ids[i]);
+                        result.skipped++;
+                    }
+                }
+
+                // The batch only changed items the server already has, so unless something else
+                // changed meanwhile there is nothing new to push
+                SharedPreferences.Editor editor = mPreferences.edit();
+                if (nothingPending) {
+                    editor.putLong(KEY_PUSHED_VERSION, pulledVersion(pushedVersion, ids));
+                }
+                version = response.getLong("version");
+                editor.putLong(KEY_PULLED_VERSION, version).apply();
+                if (items.length() < BATCH_SIZE) {
+                    return;
+                }
+            } catch (JSONException | RemoteException | OperationApplicationException e) {
+                throw new IOException("Cannot apply server edits", e);
+            }
+        }
+    }
+
+    /**
+     * Return the change version reached by applying edits to the items with the given _ids,
+     * starting from the given version. If an item other than those changed after the given
+     * version, it still has to be pushed, and the given version is returned as it is.
+     */
+    private long pulledVersion(long version, long[] ids) {
+        Set<Long> pulled = new HashSet<>(ids.length);
+        for (long id : ids) {
+            pulled.add(id);
+        }
+        // Each applied edit makes one change, so more changes than edits means another write
+        Map<Long, Long> changes = changesSince(version, ids.length + 1);
+        if (changes.size() > ids.length || !pulled.containsAll(changes.keySet())) {
+            return version;
+        }
+        long reached = version;
+        for (long changeVersion : changes.values()) {
+            reached = Math.max(reached, changeVersion);
+        }
+        return reached;
+    }
+
+    /**
+     * Return the change version of up to {@code limit} items changed after the given version,
+     * by _id.
+     */
+    private Map<Long, Long> changesSince(long version, int limit) {
+        Uri changes = ItemEntry.CONTENT_CHANGES_URI.buildUpon()
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_SINCE, String.valueOf(version))
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+        Map<Long, Long> versions = new HashMap<>();
+        Cursor cursor = mResolver.query(changes, new String[] {
+                ItemEntry._ID, ItemEntry.COLUMN_ITEM_CHANGE_VERSION }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return versions;
+    }
+
+    /**
+     * Apply the given edits to the items with the given _ids, all in one batch. If the catalog
+     * refuses one of them the batch is rolled back and the edits are applied one at a time
+     * instead, skipping the refused ones. Return the number of rows each edit updated, or -1
+     * for the skipped edits.
+     */
+    private int[] applyUpdates(long[] ids, ContentValues[] edits)
+            throws RemoteException, OperationApplicationException {
+        int[] updated = new int[ids.length];
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            operations.add(ContentProviderOperation.newUpdate(itemUri(ids[i]))
+                    .withValues(edits[i]).build());
+        }
+        if (operations.isEmpty()) {
+            return updated;
+        }
+
+        try {
+            ContentProviderResult[] results =
+                    mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < results.length; i++) {
+                updated[i] = results[i].count;
+            }
+        } catch (SQLiteConstraintException | IllegalArgumentException e) {
+            for (int i = 0; i < ids.length; i++) {
+                try {
+                    updated[i] = mResolver.update(itemUri(ids[i]), edits[i], null, null);
+                } catch (SQLiteConstraintException | IllegalArgumentException refused) {
+                    updated[i] = -1;
+                }
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Insert an item created on the server. Return whether the catalog accepted it.
+     */
+    private boolean insert(ContentValues item) {
+        try {
+            return mResolver.insert(ItemEntry.CONTENT_URI, item) != null;
+        } catch (SQLiteConstraintException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static Uri itemUri(long id) {
+        return ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Put a value decoded from JSON into the given values, keeping its type.
+     */
+    private static void putValue(ContentValues values, String column, Object value) {
+        if (value == null) {
+            values.putNull(column);
+        } else if (value instanceof Integer || value instanceof Long) {
+            values.put(column, ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            values.put(column, ((Number) value).doubleValue());
+        } else {
+            values.put(column, value.toString());
+        }
+    }
+
+    private static JSONObject toJson(Cursor cursor) throws JSONException {
+        JSONObject item = new JSONObject();
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    item.put(cursor.getColumnName(i), JSONObject.NULL);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    item.put(cursor.getColumnName(i), cursor.getLong(i));
+                    break;
+                default:
+                    item.put(cursor.getColumnName(i), cursor.getString(i));
+                    break;
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Send a request with an optional JSON body and return the JSON response, or an empty
+     * object if there is none.
+     */
+    private static JSONObject request(String method, URL url, JSONObject body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(15000);
+            connection.setReadTimeout(30000);
+            if (body != null) {
+                byte[] bytes = body.toString().getBytes(UTF_8);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(bytes.length);
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException(method + " " + url + " failed with HTTP " + status);
+            }
+
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    response.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            String text = new String(response.toByteArray(), UTF_8);
+            return text.trim().isEmpty() ? new JSONObject() : new JSONObject(text);
+        } catch (JSONException e) {
+            throw new IOException("Bad response to " + method + " " + url, e);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Adjusts amounts through the provider methods and checks that no amount goes below zero.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderAdjustTest {
+
+    private ContentResolver mResolver;
+    private Uri mRouterUri;
+    private Uri mSwitchUri;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mRouterUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Router", 5));
+        mSwitchUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Switch", 5));
+    }
+
+    @Test
+    public void adjust_returnsNewAmount() {
+        assertEquals(1, adjust(mRouterUri, -4));
+        assertEquals(11, adjust(mRouterUri, 10));
+        assertEquals(11, amount(mRouterUri));
+    }
+
+    @Test
+    public void adjustBelowZero_isRejected() {
+        assertEquals(ItemContract.AMOUNT_NOT_ADJUSTED, adjust(mRouterUri, -6));
+        assertEquals(5, amount(mRouterUri));
+    }
+
+    @Test
+    public void adjustOfDeletedItem_isRejected() {
+        mResolver.delete(mRouterUri, null, null);
+
+        assertEquals(ItemContract.AMOUNT_NOT_ADJUSTED, adjust(mRouterUri, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adjustWithoutDelta_isRefused() {
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_ID, ContentUris.parseId(mRouterUri));
+        mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ADJUST_AMOUNT, null, extras);
+    }
+
+    @Test
+    public void batchAdjust_rejectsOnlyAdjustmentsBelowZero() {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ItemContract.EXTRA_IDS, new long[] {
+                ContentUris.parseId(mRouterUri), ContentUris.parseId(mSwitchUri) });
+        extras.putIntArray(ItemContract.EXTRA_DELTAS, new int[] { -1, -10 });
+
+        Bundle result = mResolver.call(ItemEntry.CONTENT_URI,
+                ItemContract.METHOD_ADJUST_AMOUNTS, null, extras);
+
+        assertArrayEquals(new int[] { 4, ItemContract.AMOUNT_NOT_ADJUSTED },
+                result.getIntArray(ItemContract.EXTRA_AMOUNTS));
+        assertEquals(4, amount(mRouterUri));
+        assertEquals(5, amount(mSwitchUri));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchAdjustWithMissingDeltas_isRefused() {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ItemContract.EXTRA_IDS, new long[] {
+                ContentUris.parseId(mRouterUri), ContentUris.parseId(mSwitchUri) });
+        extras.putIntArray(ItemContract.EXTRA_DELTAS, new int[] { 1 });
+        mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ADJUST_AMOUNTS, null, extras);
+    }
+
+    private static ContentValues item(String name, int amount) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+        return values;
+    }
+
+    /**
+     * Add the delta to the amount of the item and return the new amount, or
+     * {@link ItemContract#AMOUNT_NOT_ADJUSTED}.
+     */
+    private int adjust(Uri itemUri, int delta) {
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_ID, ContentUris.parseId(itemUri));
+        extras.putInt(ItemContract.EXTRA_DELTA, delta);
+        return mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ADJUST_AMOUNT, null,
+                extras).getInt(ItemContract.EXTRA_AMOUNT);
+    }
+
+    private int amount(Uri itemUri) {
+        Cursor cursor = mResolver.query(itemUri, new String[] { ItemEntry.COLUMN_ITEM_AMOUNT },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Applies batches of mixed operations and checks that each one commits or rolls back as a
+ * whole and notifies every affected URI once.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderBatchTest {
+
+    private ContentResolver mResolver;
+    private Uri mRouterUri;
+    private Uri mSwitchUri;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mRouterUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Router", 3));
+        mSwitchUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Switch", 4));
+    }
+
+    @Test
+    public void failingBatch_rollsBackEveryOperation() throws Exception {
+        int before = notifiedUris().size();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(ItemEntry.CONTENT_URI)
+                .withValues(item("Modem", 1)).build());
+        operations.add(ContentProviderOperation.newUpdate(mRouterUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 7).build());
+        operations.add(ContentProviderOperation.newDelete(mSwitchUri).build());
+        operations.add(ContentProviderOperation.newUpdate(mRouterUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, -1).build());
+
+        try {
+            mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+            fail("A negative amount must fail the batch");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(3, amount(mRouterUri));
+        assertEquals(4, amount(mSwitchUri));
+        assertEquals(2, count(ItemEntry.CONTENT_URI));
+        assertEquals(before, notifiedUris().size());
+    }
+
+    @Test
+    public void yieldPoint_doesNotCommitEarlierOperations() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(mRouterUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 7).build());
+        operations.add(ContentProviderOperation.newUpdate(mSwitchUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 8).withYieldAllowed(true).build());
+        operations.add(ContentProviderOperation.newUpdate(mSwitchUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, -1).build());
+
+        try {
+            mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+            fail("A negative amount must fail the batch");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(3, amount(mRouterUri));
+        assertEquals(4, amount(mSwitchUri));
+    }
+
+    @Test
+    public void batch_notifiesEachUriOnce() throws Exception {
+        int before = notifiedUris().size();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(mRouterUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 5).build());
+        operations.add(ContentProviderOperation.newUpdate(mRouterUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 6).build());
+        operations.add(ContentProviderOperation.newUpdate(mSwitchUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 7).build());
+        operations.add(ContentProviderOperation.newDelete(mSwitchUri).build());
+
+        mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+
+        List<Uri> notified = notifiedUris();
+        assertEquals(Arrays.asList(mRouterUri, mSwitchUri),
+                notified.subList(before, notified.size()));
+        assertEquals(6, amount(mRouterUri));
+        assertEquals(0, count(mSwitchUri));
+    }
+
+    private static ContentValues item(String name, int amount) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+        return values;
+    }
+
+    private int amount(Uri itemUri) {
+        Cursor cursor = mResolver.query(itemUri, new String[] { ItemEntry.COLUMN_ITEM_AMOUNT },
+                null, null, null);
+        try {
+            assertTrue("No item " + ContentUris.parseId(itemUri), cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the number of live items the given URI reads.
+     */
+    private int count(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { ItemEntry._ID }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Uri> notifiedUris() {
+        List<Uri> uris = new ArrayList<>();
+        for (ShadowContentResolver.NotifiedUri notified : shadowOf(mResolver).getNotifiedUris()) {
+            uris.add(notified.uri);
+        }
+        return uris;
+    }
+}
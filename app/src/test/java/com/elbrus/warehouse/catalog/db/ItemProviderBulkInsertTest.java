@@ -0,0 +1,139 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Inserts deliveries with some bad rows through bulkInsert and import chunks, and checks that
+ * only the bad rows are left out.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderBulkInsertTest {
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void bulkInsert_skipsInvalidRows() {
+        ContentValues noName = item("No name", 1);
+        noName.remove(ItemEntry.COLUMN_ITEM_NAME);
+
+        int accepted = mResolver.bulkInsert(ItemEntry.CONTENT_URI, new ContentValues[] {
+                item("Router", 3), noName, item("Switch", -1), item("Modem", 0) });
+
+        assertEquals(2, accepted);
+        assertEquals(Arrays.asList("Modem", "Router"), names());
+    }
+
+    @Test
+    public void bulkInsert_skipsDuplicateSku() {
+        ContentValues first = item("Router", 3);
+        first.put(ItemEntry.COLUMN_ITEM_SKU, "SKU-1");
+        ContentValues second = item("Switch", 4);
+        second.put(ItemEntry.COLUMN_ITEM_SKU, "SKU-1");
+
+        assertEquals(1, mResolver.bulkInsert(ItemEntry.CONTENT_URI,
+                new ContentValues[] { first, second }));
+        assertEquals(Arrays.asList("Router"), names());
+    }
+
+    @Test
+    public void bulkInsert_notifiesOnce() {
+        int before = notifiedUris().size();
+
+        mResolver.bulkInsert(ItemEntry.CONTENT_URI, new ContentValues[] {
+                item("Router", 3), item("Switch", 4), item("Modem", 5) });
+
+        List<Uri> notified = notifiedUris();
+        assertEquals(Arrays.asList(ItemEntry.CONTENT_URI), notified.subList(before, notified.size()));
+    }
+
+    @Test
+    public void bulkInsert_ofOnlyInvalidRows_notifiesNothing() {
+        int before = notifiedUris().size();
+
+        assertEquals(0, mResolver.bulkInsert(ItemEntry.CONTENT_URI,
+                new ContentValues[] { item("Switch", -1) }));
+
+        assertEquals(before, notifiedUris().size());
+    }
+
+    @Test
+    public void importChunk_reportsAcceptedAndRejectedRows() {
+        ArrayList<ContentValues> rows = new ArrayList<>(Arrays.asList(
+                item("Router", 3), item("Switch", -1), item("Modem", 0)));
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(ItemContract.EXTRA_ROWS, rows);
+        extras.putLong(ItemContract.EXTRA_POSITION, 3);
+
+        Bundle result = mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_IMPORT_CHUNK,
+                "delivery", extras);
+
+        assertEquals(2, result.getInt(ItemContract.EXTRA_ACCEPTED));
+        assertEquals(1, result.getInt(ItemContract.EXTRA_REJECTED));
+        assertEquals(3, mResolver.call(ItemEntry.CONTENT_URI,
+                ItemContract.METHOD_GET_IMPORT_POSITION, "delivery", null)
+                .getLong(ItemContract.EXTRA_POSITION));
+    }
+
+    private static ContentValues item(String name, int amount) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+        return values;
+    }
+
+    /**
+     * Return the names of the live items, in alphabetical order.
+     */
+    private List<String> names() {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = mResolver.query(ItemEntry.CONTENT_URI,
+                new String[] { ItemEntry.COLUMN_ITEM_NAME }, null, null,
+                ItemEntry.COLUMN_ITEM_NAME);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    private List<Uri> notifiedUris() {
+        List<Uri> uris = new ArrayList<>();
+        for (ShadowContentResolver.NotifiedUri notified : shadowOf(mResolver).getNotifiedUris()) {
+            uris.add(notified.uri);
+        }
+        return uris;
+    }
+}
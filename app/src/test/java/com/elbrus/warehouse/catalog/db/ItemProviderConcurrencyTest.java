@@ -0,0 +1,192 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Races writers on the same item through conditional updates and checks that none of their
+ * changes is lost.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderConcurrencyTest {
+
+    private static final int WRITERS = 8;
+    private static final int INCREMENTS = 25;
+
+    private ContentResolver mResolver;
+    private Uri mItemUri;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Contended");
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 0);
+        mItemUri = mResolver.insert(ItemEntry.CONTENT_URI, values);
+    }
+
+    @Test
+    public void staleVersion_isRejected() {
+        long version = read()[1];
+        assertEquals(ItemContract.UPDATE_APPLIED, setAmount(5, version).getInt(
+                ItemContract.EXTRA_UPDATE_RESULT));
+
+        Bundle result = setAmount(9, version);
+
+        assertEquals(ItemContract.UPDATE_CONFLICT, result.getInt(ItemContract.EXTRA_UPDATE_RESULT));
+        assertEquals(read()[1], result.getLong(ItemContract.EXTRA_VERSION));
+        assertEquals(5, read()[0]);
+    }
+
+    @Test
+    public void staleVersionInUri_updatesNothing() {
+        long version = read()[1];
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 3);
+        Uri conditional = mItemUri.buildUpon().appendQueryParameter(
+                ItemEntry.QUERY_PARAMETER_EXPECTED_VERSION, String.valueOf(version)).build();
+
+        assertEquals(1, mResolver.update(conditional, values, null, null));
+        assertEquals(0, mResolver.update(conditional, values, null, null));
+    }
+
+    @Test
+    public void deletedItem_isNotFound() {
+        long version = read()[1];
+        mResolver.delete(mItemUri, null, null);
+
+        assertEquals(ItemContract.UPDATE_NOT_FOUND, setAmount(1, version).getInt(
+                ItemContract.EXTRA_UPDATE_RESULT));
+    }
+
+    @Test
+    public void rejectedDelta_rollsBackValues() {
+        long version = read()[1];
+        Bundle extras = updateExtras(version);
+        ((ContentValues) extras.getParcelable(ItemContract.EXTRA_VALUES))
+                .put(ItemEntry.COLUMN_ITEM_NAME, "Renamed");
+        extras.putInt(ItemContract.EXTRA_DELTA, -1);
+
+        Bundle result = mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_UPDATE_ITEM,
+                null, extras);
+
+        assertEquals(ItemContract.UPDATE_REJECTED, result.getInt(ItemContract.EXTRA_UPDATE_RESULT));
+        assertEquals(version, read()[1]);
+        Cursor cursor = mResolver.query(mItemUri, new String[] { ItemEntry.COLUMN_ITEM_NAME },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Contended", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void appliedDelta_returnsNewAmountAndVersion() {
+        Bundle extras = updateExtras(read()[1]);
+        extras.putInt(ItemContract.EXTRA_DELTA, 4);
+
+        Bundle result = mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_UPDATE_ITEM,
+                null, extras);
+
+        assertEquals(ItemContract.UPDATE_APPLIED, result.getInt(ItemContract.EXTRA_UPDATE_RESULT));
+        assertEquals(4, result.getInt(ItemContract.EXTRA_AMOUNT));
+        assertEquals(read()[1], result.getLong(ItemContract.EXTRA_VERSION));
+    }
+
+    @Test
+    public void parallelWriters_loseNoUpdates() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        List<Future<Integer>> writers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            writers.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    // Read, increment and write back, starting over whenever another writer
+                    // got in between
+                    int lost = 0;
+                    for (int done = 0; done < INCREMENTS; ) {
+                        long[] item = read();
+                        Bundle result = setAmount((int) item[0] + 1, item[1]);
+                        if (result.getInt(ItemContract.EXTRA_UPDATE_RESULT)
+                                == ItemContract.UPDATE_APPLIED) {
+                            done++;
+                        } else {
+                            lost++;
+                        }
+                    }
+                    return lost;
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        for (Future<Integer> future : writers) {
+            future.get();
+        }
+
+        assertEquals(WRITERS * INCREMENTS, read()[0]);
+    }
+
+    /**
+     * Return the amount and the version of the item.
+     */
+    private long[] read() {
+        Cursor cursor = mResolver.query(mItemUri, new String[] {
+                ItemEntry.COLUMN_ITEM_AMOUNT, ItemEntry.COLUMN_ITEM_CHANGE_VERSION },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return new long[] { cursor.getLong(0), cursor.getLong(1) };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle setAmount(int amount, long expectedVersion) {
+        Bundle extras = updateExtras(expectedVersion);
+        ((ContentValues) extras.getParcelable(ItemContract.EXTRA_VALUES))
+                .put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+        return mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_UPDATE_ITEM, null, extras);
+    }
+
+    /**
+     * Return the extras of a conditional update of the item, with no values yet.
+     */
+    private Bundle updateExtras(long expectedVersion) {
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_ID, ContentUris.parseId(mItemUri));
+        extras.putLong(ItemContract.EXTRA_EXPECTED_VERSION, expectedVersion);
+        extras.putParcelable(ItemContract.EXTRA_VALUES, new ContentValues());
+        return extras;
+    }
+}
@@ -0,0 +1,146 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads exports of the catalog through the provider's pipe and checks their content.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderExportTest {
+
+    private ItemProvider mProvider;
+    private ContentResolver mResolver;
+    private long mRouterId;
+    private long mSwitchId;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(ItemProvider.class)
+                .create(ItemContract.CONTENT_AUTHORITY).get();
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues router = item("Router", 3);
+        router.put(ItemEntry.COLUMN_ITEM_BRAND, "Acme, \"Pro\"");
+        mRouterId = ContentUris.parseId(mResolver.insert(ItemEntry.CONTENT_URI, router));
+        mSwitchId = ContentUris.parseId(mResolver.insert(ItemEntry.CONTENT_URI, item("Switch", 7)));
+        Uri modemUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Modem", 1));
+        mResolver.delete(modemUri, null, null);
+    }
+
+    @Test
+    public void csvExport_writesHeaderAndLiveItems() throws Exception {
+        String csv = export(ItemEntry.CONTENT_EXPORT_URI.buildUpon()
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_COLUMNS, "_id,name,brand,amount")
+                .build());
+
+        assertEquals("_id,name,brand,amount\r\n"
+                + mRouterId + ",Router,\"Acme, \"\"Pro\"\"\",3\r\n"
+                + mSwitchId + ",Switch,,7\r\n", csv);
+    }
+
+    @Test
+    public void jsonExport_writesOneObjectPerItem() throws Exception {
+        JSONArray items = new JSONArray(export(ItemEntry.CONTENT_EXPORT_URI.buildUpon()
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_FORMAT, ItemEntry.FORMAT_JSON)
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_COLUMNS, "_id,name,brand,amount")
+                .build()));
+
+        assertEquals(2, items.length());
+        JSONObject router = items.getJSONObject(0);
+        assertEquals(mRouterId, router.getLong(ItemEntry._ID));
+        assertEquals("Router", router.getString(ItemEntry.COLUMN_ITEM_NAME));
+        assertEquals("Acme, \"Pro\"", router.getString(ItemEntry.COLUMN_ITEM_BRAND));
+        assertEquals(3, router.getInt(ItemEntry.COLUMN_ITEM_AMOUNT));
+        assertTrue(items.getJSONObject(1).isNull(ItemEntry.COLUMN_ITEM_BRAND));
+    }
+
+    @Test
+    public void export_appliesSelection() throws Exception {
+        String csv = export(ItemEntry.CONTENT_EXPORT_URI.buildUpon()
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_COLUMNS, "name")
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_SELECTION, "amount > ?")
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_SELECTION_ARG, "5")
+                .build());
+
+        assertEquals("name\r\nSwitch\r\n", csv);
+    }
+
+    @Test
+    public void export_readsEveryChunk() throws Exception {
+        ContentValues[] items = new ContentValues[2500];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = item("Item " + i, i);
+        }
+        mResolver.bulkInsert(ItemEntry.CONTENT_URI, items);
+
+        String csv = export(ItemEntry.CONTENT_EXPORT_URI.buildUpon()
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_COLUMNS, "name").build());
+
+        String[] lines = csv.split("\r\n");
+        assertEquals(1 + 2 + items.length, lines.length);
+        assertEquals("Item 2499", lines[lines.length - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exportOfUnknownColumn_isRefused() throws Exception {
+        mProvider.openFile(ItemEntry.CONTENT_EXPORT_URI.buildUpon()
+                .appendQueryParameter(ItemEntry.QUERY_PARAMETER_COLUMNS, "name,random()")
+                .build(), "r");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void exportOpenedForWriting_isRefused() throws Exception {
+        mProvider.openFile(ItemEntry.CONTENT_EXPORT_URI, "w");
+    }
+
+    private static ContentValues item(String name, int amount) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+        return values;
+    }
+
+    /**
+     * Open the given export and read it to the end.
+     */
+    private String export(Uri uri) throws IOException {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                mProvider.openFile(uri, "r"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
@@ -0,0 +1,166 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Writes single items and groups of items and checks which URIs are notified, and when.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderNotificationTest {
+
+    /** More items than are ever notified one by one */
+    private static final int ITEMS = 40;
+
+    private ContentResolver mResolver;
+    private long[] mIds;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues[] items = new ContentValues[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            items[i] = new ContentValues();
+            items[i].put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+            items[i].put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+            items[i].put(ItemEntry.COLUMN_ITEM_AMOUNT, 10);
+        }
+        assertEquals(ITEMS, mResolver.bulkInsert(ItemEntry.CONTENT_URI, items));
+
+        mIds = new long[ITEMS];
+        Cursor cursor = mResolver.query(ItemEntry.CONTENT_URI, new String[] { ItemEntry._ID },
+                null, null, ItemEntry._ID);
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                mIds[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void singleEdit_notifiesOnlyThatItem() {
+        int before = notifiedUris().size();
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 3);
+
+        mResolver.update(itemUri(1), values, null, null);
+
+        assertEquals(Arrays.asList(itemUri(1)), notifiedSince(before));
+    }
+
+    @Test
+    public void fewAdjustments_notifyEachItem() {
+        int before = notifiedUris().size();
+
+        adjust(32);
+
+        List<Uri> notified = notifiedSince(before);
+        assertEquals(32, notified.size());
+        for (int i = 0; i < 32; i++) {
+            assertEquals(itemUri(i), notified.get(i));
+        }
+    }
+
+    @Test
+    public void manyAdjustments_notifyCatalogOnce() {
+        int before = notifiedUris().size();
+
+        adjust(33);
+
+        assertEquals(Arrays.asList(ItemEntry.CONTENT_URI), notifiedSince(before));
+    }
+
+    @Test
+    public void notificationWindow_sendsEachUriOnceWhenItCloses() {
+        setNotificationWindow(500);
+        int before = notifiedUris().size();
+        ContentValues values = new ContentValues();
+        for (int amount = 1; amount <= 3; amount++) {
+            values.put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+            mResolver.update(itemUri(1), values, null, null);
+            mResolver.update(itemUri(2), values, null, null);
+        }
+        assertEquals(before, notifiedUris().size());
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(Arrays.asList(itemUri(1), itemUri(2)), notifiedSince(before));
+    }
+
+    @Test
+    public void closingNotificationWindow_sendsWaitingNotifications() {
+        setNotificationWindow(500);
+        int before = notifiedUris().size();
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 3);
+        mResolver.update(itemUri(1), values, null, null);
+
+        setNotificationWindow(0);
+
+        assertEquals(Arrays.asList(itemUri(1)), notifiedSince(before));
+    }
+
+    /**
+     * Add one to the amount of the first {@code count} items in a single call.
+     */
+    private void adjust(int count) {
+        int[] deltas = new int[count];
+        Arrays.fill(deltas, 1);
+        Bundle extras = new Bundle();
+        extras.putLongArray(ItemContract.EXTRA_IDS, Arrays.copyOf(mIds, count));
+        extras.putIntArray(ItemContract.EXTRA_DELTAS, deltas);
+        mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ADJUST_AMOUNTS, null, extras);
+    }
+
+    private void setNotificationWindow(long windowMillis) {
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_WINDOW_MILLIS, windowMillis);
+        mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_SET_NOTIFICATION_WINDOW, null,
+                extras);
+    }
+
+    private Uri itemUri(int index) {
+        return ContentUris.withAppendedId(ItemEntry.CONTENT_URI, mIds[index]);
+    }
+
+    private List<Uri> notifiedSince(int before) {
+        List<Uri> notified = notifiedUris();
+        return notified.subList(before, notified.size());
+    }
+
+    private List<Uri> notifiedUris() {
+        List<Uri> uris = new ArrayList<>();
+        for (ShadowContentResolver.NotifiedUri notified : shadowOf(mResolver).getNotifiedUris()) {
+            uris.add(notified.uri);
+        }
+        return uris;
+    }
+}
@@ -0,0 +1,167 @@
+package com.elbrus.warehouse.catalog.db;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Repeats queries around writes and checks that the cache answers them until a write makes
+ * its results stale.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ItemProviderQueryCacheTest {
+
+    private ContentResolver mResolver;
+    private Uri mItemUri;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mItemUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Router", 5));
+        cacheStats(true);
+    }
+
+    @Test
+    public void repeatedQuery_isAnsweredFromCache() {
+        assertEquals(5, amount());
+        assertEquals(5, amount());
+
+        Bundle stats = cacheStats(false);
+        assertEquals(1, stats.getLong(ItemContract.EXTRA_CACHE_HITS));
+        assertEquals(1, stats.getLong(ItemContract.EXTRA_CACHE_MISSES));
+    }
+
+    @Test
+    public void otherProjection_isCachedApart() {
+        assertEquals(5, amount());
+        Cursor cursor = mResolver.query(mItemUri, new String[] { ItemEntry.COLUMN_ITEM_NAME },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Router", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(2, cacheStats(false).getLong(ItemContract.EXTRA_CACHE_MISSES));
+    }
+
+    @Test
+    public void update_invalidatesCachedResults() {
+        assertEquals(5, amount());
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 8);
+        mResolver.update(mItemUri, values, null, null);
+
+        assertEquals(8, amount());
+        assertEquals(0, cacheStats(false).getLong(ItemContract.EXTRA_CACHE_HITS));
+    }
+
+    @Test
+    public void adjustment_invalidatesCachedResults() {
+        assertEquals(5, amount());
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_ID, ContentUris.parseId(mItemUri));
+        extras.putInt(ItemContract.EXTRA_DELTA, 2);
+        mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ADJUST_AMOUNT, null, extras);
+
+        assertEquals(7, amount());
+    }
+
+    @Test
+    public void insertAndDelete_invalidateCachedList() {
+        assertEquals(1, count());
+        Uri switchUri = mResolver.insert(ItemEntry.CONTENT_URI, item("Switch", 1));
+        assertEquals(2, count());
+        mResolver.bulkInsert(ItemEntry.CONTENT_URI, new ContentValues[] { item("Modem", 1) });
+        assertEquals(3, count());
+        mResolver.delete(switchUri, null, null);
+        assertEquals(2, count());
+
+        assertEquals(0, cacheStats(false).getLong(ItemContract.EXTRA_CACHE_HITS));
+    }
+
+    @Test
+    public void batch_invalidatesCachedResults() throws Exception {
+        assertEquals(5, amount());
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(mItemUri)
+                .withValue(ItemEntry.COLUMN_ITEM_AMOUNT, 9).build());
+        mResolver.applyBatch(ItemContract.CONTENT_AUTHORITY, operations);
+
+        assertEquals(9, amount());
+    }
+
+    @Test
+    public void reset_dropsCachedResults() {
+        assertEquals(5, amount());
+        Bundle stats = cacheStats(true);
+        assertEquals(1, stats.getInt(ItemContract.EXTRA_CACHE_ROWS));
+
+        assertEquals(0, cacheStats(false).getInt(ItemContract.EXTRA_CACHE_ROWS));
+        assertEquals(5, amount());
+        assertEquals(0, cacheStats(false).getLong(ItemContract.EXTRA_CACHE_HITS));
+    }
+
+    private static ContentValues item(String name, int amount) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, ItemEntry.PRICE_LOW);
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, amount);
+        return values;
+    }
+
+    /**
+     * Return the cache counters, and clear the cache and its counters if asked to.
+     */
+    private Bundle cacheStats(boolean reset) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ItemContract.EXTRA_RESET, reset);
+        return mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_QUERY_CACHE_STATS, null,
+                extras);
+    }
+
+    private int amount() {
+        Cursor cursor = mResolver.query(mItemUri, new String[] { ItemEntry.COLUMN_ITEM_AMOUNT },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the number of live items in the catalog list.
+     */
+    private int count() {
+        Cursor cursor = mResolver.query(ItemEntry.CONTENT_URI, new String[] { ItemEntry._ID },
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.elbrus.warehouse.catalog.sync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local HTTP stand-in for the back-office server, speaking the protocol of
+ * {@link CatalogSyncClient}. It keeps the mirrored items in memory and a log of the edits made
+ * "in the back office", numbered by server version.
+ */
+class BackOfficeStandIn {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final HttpServer mServer;
+
+    /** Mirrored items by _id */
+    private final Map<Long, JSONObject> mItems = new HashMap<>();
+
+    /** Back-office edits, the edit at index i has server version i + 1 */
+    private final List<JSONObject> mEdits = new ArrayList<>();
+
+    /** Number of items received by the last POST */
+    private int mLastPushSize;
+
+    BackOfficeStandIn() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/items", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                receiveItems(exchange);
+            }
+        });
+        mServer.createContext("/changes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                sendChanges(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    /** Return the base URL of the stand-in */
+    URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/");
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    synchronized JSONObject item(long id) {
+        return mItems.get(id);
+    }
+
+    synchronized int itemCount() {
+        return mItems.size();
+    }
+
+    synchronized int lastPushSize() {
+        return mLastPushSize;
+    }
+
+    /**
+     * Record an edit of one column of an item made in the back office.
+     */
+    synchronized void edit(long id, String column, Object value) throws JSONException {
+        mEdits.add(new JSONObject().put("_id", id).put(column, value));
+    }
+
+    /**
+     * Record an item created in the back office with the given name and price tier.
+     */
+    synchronized void create(long id, String name, int price) throws JSONException {
+        mEdits.add(new JSONObject().put("_id", id).put("name", name).put("price", price));
+    }
+
+    private void receiveItems(HttpExchange exchange) throws IOException {
+        try {
+            JSONArray items = new JSONObject(read(exchange)).getJSONArray("items");
+            synchronized (this) {
+                for (int i = 0; i < items.length(); i++) {
+                    JSONObject item = items.getJSONObject(i);
+                    mItems.put(item.getLong("_id"), item);
+                }
+                mLastPushSize = items.length();
+            }
+            respond(exchange, 200, new JSONObject().put("stored", items.length()));
+        } catch (JSONException e) {
+            respond(exchange, 400, null);
+        }
+    }
+
+    private void sendChanges(HttpExchange exchange) throws IOException {
+        long since = 0;
+        int limit = Integer.MAX_VALUE;
+        for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+            String[] pair = parameter.split("=");
+            if (pair[0].equals("since")) {
+                since = Long.parseLong(pair[1]);
+            } else if (pair[0].equals("limit")) {
+                limit = Integer.parseInt(pair[1]);
+            }
+        }
+
+        try {
+            JSONArray items = new JSONArray();
+            long version = since;
+            synchronized (this) {
+                for (int i = (int) since; i < mEdits.size() && items.length() < limit; i++) {
+                    items.put(mEdits.get(i));
+                    version = i + 1;
+                }
+            }
+            respond(exchange, 200, new JSONObject().put("items", items).put("version", version));
+        } catch (JSONException e) {
+            respond(exchange, 500, null);
+        }
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(body.toByteArray(), UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject body)
+            throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.toString().getBytes(UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
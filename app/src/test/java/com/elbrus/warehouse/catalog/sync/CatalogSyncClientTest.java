@@ -0,0 +1,189 @@
+package com.elbrus.warehouse.catalog.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.elbrus.warehouse.catalog.db.CatalogGenerator;
+import com.elbrus.warehouse.catalog.db.ItemContract;
+import com.elbrus.warehouse.catalog.db.ItemContract.ItemEntry;
+import com.elbrus.warehouse.catalog.db.ItemProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs the catalog with a local stand-in of the back-office server and checks that only the
+ * changes travel.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CatalogSyncClientTest {
+
+    private static final int ITEMS = 1200;
+
+    private ContentResolver mResolver;
+    private BackOfficeStandIn mServer;
+    private CatalogSyncClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.buildContentProvider(ItemProvider.class).create(ItemContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new BackOfficeStandIn();
+        mClient = new CatalogSyncClient(RuntimeEnvironment.application, mServer.url());
+        new CatalogGenerator(7).fill(mResolver, ITEMS);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void firstSync_pushesWholeCatalog() throws Exception {
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(ITEMS, result.pushed);
+        assertEquals(ITEMS, mServer.itemCount());
+    }
+
+    @Test
+    public void laterSync_pushesOnlyChanges() throws Exception {
+        mClient.sync();
+
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 42);
+        mResolver.update(itemUri(10), values, null, null);
+        mResolver.delete(itemUri(20), null, null);
+
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(2, result.pushed);
+        assertEquals(2, mServer.lastPushSize());
+        assertEquals(42, mServer.item(10).getInt(ItemEntry.COLUMN_ITEM_AMOUNT));
+        assertFalse(mServer.item(20).isNull(ItemEntry.COLUMN_ITEM_DELETED_AT));
+        assertEquals(0, mClient.sync().pushed);
+    }
+
+    @Test
+    public void sync_appliesBackOfficeEdits() throws Exception {
+        mClient.sync();
+        mServer.edit(5, ItemEntry.COLUMN_ITEM_AMOUNT, 77);
+
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(1, result.pulled);
+        assertEquals(77, amount(5));
+        assertEquals(0, mClient.sync().pulled);
+    }
+
+    @Test
+    public void sync_doesNotPushBackPulledEdits() throws Exception {
+        mClient.sync();
+        mServer.edit(5, ItemEntry.COLUMN_ITEM_AMOUNT, 77);
+        mServer.create(ITEMS + 100, "Docking station", ItemEntry.PRICE_HIGH);
+        assertEquals(2, mClient.sync().pulled);
+
+        assertEquals(0, mClient.sync().pushed);
+    }
+
+    @Test
+    public void sync_pushesLocalEditsMadeBeforePull() throws Exception {
+        mClient.sync();
+        mServer.edit(5, ItemEntry.COLUMN_ITEM_AMOUNT, 77);
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_AMOUNT, 42);
+        mResolver.update(itemUri(10), values, null, null);
+
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(1, result.pushed);
+        assertEquals(1, result.pulled);
+        assertEquals(42, mServer.item(10).getInt(ItemEntry.COLUMN_ITEM_AMOUNT));
+        assertEquals(0, mClient.sync().pushed);
+    }
+
+    @Test
+    public void sync_insertsItemsCreatedInBackOffice() throws Exception {
+        mClient.sync();
+        mServer.create(ITEMS + 100, "Docking station", ItemEntry.PRICE_HIGH);
+
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(1, result.pulled);
+        assertEquals(0, result.skipped);
+        Cursor cursor = mResolver.query(itemUri(ITEMS + 100),
+                new String[] { ItemEntry.COLUMN_ITEM_NAME }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Docking station", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void sync_skipsEditsTheCatalogRefuses() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_SKU, "SKU-1");
+        mResolver.update(itemUri(1), values, null, null);
+        mClient.sync();
+        mServer.edit(2, ItemEntry.COLUMN_ITEM_SKU, "SKU-1");
+        mServer.edit(3, ItemEntry.COLUMN_ITEM_AMOUNT, 55);
+
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(1, result.pulled);
+        assertEquals(1, result.skipped);
+        assertEquals(55, amount(3));
+
+        // The refused edit doesn't come back on the next sync
+        result = mClient.sync();
+        assertEquals(0, result.pulled);
+        assertEquals(0, result.skipped);
+    }
+
+    @Test
+    public void sync_keepsLocalDeletionOverBackOfficeEdit() throws Exception {
+        mClient.sync();
+        mResolver.delete(itemUri(4), null, null);
+        mServer.edit(4, ItemEntry.COLUMN_ITEM_AMOUNT, 9);
+
+        CatalogSyncClient.Result result = mClient.sync();
+
+        assertEquals(0, result.pulled);
+        assertEquals(1, result.skipped);
+        Cursor cursor = mResolver.query(itemUri(4), null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri itemUri(long id) {
+        return ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+    }
+
+    private int amount(long id) {
+        Cursor cursor = mResolver.query(itemUri(id),
+                new String[] { ItemEntry.COLUMN_ITEM_AMOUNT }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}